@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects single-column reads from all threads for a short window (or until there are enough of them) and then 
+ * reads each row's columns in one request (see MultiGetIO). Lots of searches each asking for a column at a time turn
+ * into a few requests to the store, at the cost of up to one window of extra latency per read. Reads of the same 
+ * column in the same window are only done once.
+ *
+ * Everything other than get() and getBuffer() goes straight to the underlying IO. Put it under a cache, not over 
+ * one.
+ */
+public class BatchingIO implements BufferIO, RangeIO {
+    public static final long DEFAULT_WINDOW_MICROS = 200;
+    public static final int DEFAULT_MAX_BATCH = 64;
+    
+    // threads are daemons and go away when idle, so nobody needs to shut these down.
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(daemons("BatchingIO-timer"));
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(daemons("BatchingIO-reader"));
+    
+    private final IO io;
+    // read outside the lock by every reader.
+    private volatile long windowMicros = DEFAULT_WINDOW_MICROS;
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;
+    
+    // reads waiting for the current batch to go out: key -> col -> result. guarded by this.
+    private Map<String, Map<Long, SettableFuture<ByteBuffer>>> pending = new HashMap<String, Map<Long, SettableFuture<ByteBuffer>>>();
+    private int pendingReads = 0;
+    
+    // identifies the current batch, so a timer does not send out a batch that already went.
+    private long batchNumber = 0;
+    
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong requests = new AtomicLong(0);
+    
+    public BatchingIO(IO io) {
+        this.io = io;
+    }
+
+    /** set how long the first read of a batch waits for others to join it. 0 turns batching off. */
+    public BatchingIO withWindow(long micros) {
+        windowMicros = micros;
+        return this;
+    }
+    
+    /** a batch goes out as soon as it has this many reads, without waiting for the window to pass. */
+    public BatchingIO withMaxBatch(int reads) {
+        maxBatch = reads;
+        return this;
+    }
+    
+    /** @return the number of batches sent out. */
+    public long batches() {
+        return batches.get();
+    }
+    
+    /** @return the number of requests (one per row in a batch) made to the underlying IO. */
+    public long requests() {
+        return requests.get();
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        if (windowMicros <= 0) {
+            return Utils.getBuffer(io, key, col);
+        }
+        
+        SettableFuture<ByteBuffer> result;
+        Map<String, Map<Long, SettableFuture<ByteBuffer>>> full = null;
+        synchronized (this) {
+            Map<Long, SettableFuture<ByteBuffer>> row = pending.get(key);
+            if (row == null) {
+                row = new HashMap<Long, SettableFuture<ByteBuffer>>();
+                pending.put(key, row);
+            }
+            result = row.get(col);
+            if (result == null) {
+                result = SettableFuture.create();
+                row.put(col, result);
+                pendingReads += 1;
+                if (pendingReads == 1) {
+                    scheduleBatch(batchNumber);
+                }
+                if (pendingReads >= maxBatch) {
+                    full = takeBatch();
+                }
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        
+        try {
+            ByteBuffer value = Uninterruptibles.getUninterruptibly(result);
+            return value == null ? null : value.asReadOnlyBuffer();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        ByteBuffer value = getBuffer(key, col);
+        return value == null ? null : Utils.toBytes(value);
+    }
+
+    @Override
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+        return Utils.getRange(io, key, fromCol, toCol);
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        Utils.putBuffer(io, key, col, value);
+    }
+
+    @Override
+    public void put(String key, long col, byte[] value) throws IOException {
+        io.put(key, col, value);
+    }
+
+    @Override
+    public int getColSize() {
+        return io.getColSize();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        io.delete(key);
+    }
+
+    @Override
+    public void delete(String key, long col) throws IOException {
+        io.delete(key, col);
+    }
+
+    @Override
+    public boolean hasKey(String key) throws IOException {
+        return io.hasKey(key);
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        return io.allValues(key);
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        return io.allColumns(key);
+    }
+    
+    // send out a batch once the window has passed, unless it has gone out already.
+    private void scheduleBatch(final long number) {
+        TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Map<String, Map<Long, SettableFuture<ByteBuffer>>> batch = null;
+                synchronized (BatchingIO.this) {
+                    if (batchNumber == number) {
+                        batch = takeBatch();
+                    }
+                }
+                if (batch != null) {
+                    send(batch);
+                }
+            }
+        }, windowMicros, TimeUnit.MICROSECONDS);
+    }
+    
+    // must hold the lock.
+    private Map<String, Map<Long, SettableFuture<ByteBuffer>>> takeBatch() {
+        Map<String, Map<Long, SettableFuture<ByteBuffer>>> batch = pending;
+        pending = new HashMap<String, Map<Long, SettableFuture<ByteBuffer>>>();
+        pendingReads = 0;
+        batchNumber += 1;
+        return batch;
+    }
+    
+    // one request per row, all at once.
+    private void send(Map<String, Map<Long, SettableFuture<ByteBuffer>>> batch) {
+        batches.incrementAndGet();
+        for (final Map.Entry<String, Map<Long, SettableFuture<ByteBuffer>>> row : batch.entrySet()) {
+            READERS.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read(row.getKey(), row.getValue());
+                }
+            });
+        }
+    }
+    
+    private void read(String key, Map<Long, SettableFuture<ByteBuffer>> cols) {
+        requests.incrementAndGet();
+        try {
+            for (Column column : Utils.getColumns(io, key, new ArrayList<Long>(cols.keySet()))) {
+                SettableFuture<ByteBuffer> result = cols.get(column.col());
+                if (result != null) {
+                    result.set(column.value());
+                }
+            }
+            // whatever is left is not there.
+            for (SettableFuture<ByteBuffer> result : cols.values()) {
+                result.set(null);
+            }
+        } catch (Throwable th) {
+            for (SettableFuture<ByteBuffer> result : cols.values()) {
+                result.setException(th);
+            }
+        }
+    }
+    
+    private static ThreadFactory daemons(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, String.format("%s-%d", name, count.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
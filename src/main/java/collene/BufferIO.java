@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An IO that can move values around as ByteBuffers instead of byte arrays. This lets a value go from wherever the
+ * store keeps it (a driver buffer, an off-heap slab, a mapped file) to its final destination without being copied
+ * along the way.
+ *
+ * Values run from position() to limit(). Use Utils.getBuffer() and Utils.putBuffer() to talk to an IO that may or may
+ * not implement this interface.
+ */
+public interface BufferIO extends IO {
+
+    /** @return a read-only view of a value, or null if there isn't one. */
+    public ByteBuffer getBuffer(String key, long col) throws IOException;
+
+    /** store a value. implementations may hang on to the buffer, so do not modify it afterwards. */
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException;
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.QueryOptions;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.LatencyAwarePolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.RetryPolicy;
+import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+
+/**
+ * How CassandraIO talks to a cluster: connection pools, load balancing, compression, paging, consistency and 
+ * retries. Anything left alone keeps the driver's default (or ONE, for consistency). Pass one to 
+ * CassandraIO.start().
+ *
+ * The driver this is built against (2.0.x) has no speculative executions. The closest thing for tail latency is 
+ * withLatencyAwareness(), which steers requests away from hosts that have been slow lately.
+ */
+public class CassandraConfig {
+    private final PoolingOptions pooling = new PoolingOptions();
+    private LoadBalancingPolicy loadBalancing = null;
+    private boolean latencyAware = false;
+    private ProtocolOptions.Compression compression = ProtocolOptions.Compression.NONE;
+    private RetryPolicy retryPolicy = null;
+    private int fetchSize = CassandraIO.DEFAULT_FETCH_SIZE;
+    private ConsistencyLevel readConsistency = ConsistencyLevel.ONE;
+    private ConsistencyLevel writeConsistency = ConsistencyLevel.ONE;
+
+    /** set how many connections to keep open to each host at a distance, and how many it can grow to. */
+    public CassandraConfig withConnections(HostDistance distance, int core, int max) {
+        // the driver won't let core go above max, even for a moment.
+        if (core > pooling.getMaxConnectionsPerHost(distance)) {
+            pooling.setMaxConnectionsPerHost(distance, max);
+            pooling.setCoreConnectionsPerHost(distance, core);
+        } else {
+            pooling.setCoreConnectionsPerHost(distance, core);
+            pooling.setMaxConnectionsPerHost(distance, max);
+        }
+        return this;
+    }
+
+    /**
+     * send each request straight to a replica of its row, preferring hosts in localDc (null for a single data 
+     * center).
+     */
+    public CassandraConfig withTokenAwareness(String localDc) {
+        return withLoadBalancing(new TokenAwarePolicy(localDc == null ? new RoundRobinPolicy() : new DCAwareRoundRobinPolicy(localDc)));
+    }
+
+    /** use any load balancing policy. */
+    public CassandraConfig withLoadBalancing(LoadBalancingPolicy policy) {
+        loadBalancing = policy;
+        return this;
+    }
+
+    /** avoid hosts that are much slower than the fastest one. wraps whatever load balancing is in use. */
+    public CassandraConfig withLatencyAwareness(boolean b) {
+        latencyAware = b;
+        return this;
+    }
+
+    /** compress requests and responses. LZ4 needs net.jpountz.lz4 on the class path, SNAPPY needs snappy-java. */
+    public CassandraConfig withCompression(ProtocolOptions.Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /** decide what to do about timeouts and unavailable replicas. */
+    public CassandraConfig withRetryPolicy(RetryPolicy policy) {
+        retryPolicy = policy;
+        return this;
+    }
+
+    /** set the page size used when iterating rows. */
+    public CassandraConfig withFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /** set the consistency level for reads. */
+    public CassandraConfig withReadConsistency(ConsistencyLevel level) {
+        readConsistency = level;
+        return this;
+    }
+
+    /** set the consistency level for writes and deletes. */
+    public CassandraConfig withWriteConsistency(ConsistencyLevel level) {
+        writeConsistency = level;
+        return this;
+    }
+
+    /** @return a cluster builder with all of this applied. add contact points (and credentials, etc.) to it. */
+    public Cluster.Builder builder() {
+        Cluster.Builder builder = Cluster.builder()
+                .withPoolingOptions(pooling)
+                .withCompression(compression)
+                .withQueryOptions(new QueryOptions().setConsistencyLevel(readConsistency).setFetchSize(fetchSize));
+        LoadBalancingPolicy policy = loadBalancing;
+        if (latencyAware) {
+            policy = LatencyAwarePolicy.builder(policy == null ? new RoundRobinPolicy() : policy).build();
+        }
+        if (policy != null) {
+            builder.withLoadBalancingPolicy(policy);
+        }
+        if (retryPolicy != null) {
+            builder.withRetryPolicy(retryPolicy);
+        }
+        return builder;
+    }
+
+    int fetchSize() {
+        return fetchSize;
+    }
+
+    ConsistencyLevel readConsistency() {
+        return readConsistency;
+    }
+
+    ConsistencyLevel writeConsistency() {
+        return writeConsistency;
+    }
+}
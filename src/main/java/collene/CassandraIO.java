@@ -22,20 +22,27 @@ import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 
 /**
  * @see collene.IO 
@@ -53,11 +60,30 @@ import java.util.Set;
  * )
  * with compact storage;
  */
-public class CassandraIO implements IO {
+public class CassandraIO implements BufferIO, RangeIO, MultiGetIO, MultiPutIO {
+    // how many columns allValues() and allColumns() pull across per page.
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+    
+    // how many bytes of values putColumns() puts in one batch. newer versions of Cassandra warn about (and eventually
+    // refuse) big batches.
+    public static final int DEFAULT_MAX_BATCH_BYTES = 32 * 1024;
+    
+    // how many of those batches one putColumns() has in flight at a time. a big flush would otherwise send thousands
+    // at once and run out of connections.
+    public static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 16;
+    
     private final int columnSize;
     private final String keyspace;
     private final String columnFamily;
     private final String rowPrefix;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int maxBatchesInFlight = DEFAULT_MAX_BATCHES_IN_FLIGHT;
+    private ConsistencyLevel readConsistency = ConsistencyLevel.ONE;
+    private ConsistencyLevel writeConsistency = ConsistencyLevel.ONE;
+    
+    // prepared statements by CQL. clones share these along with the session.
+    private ConcurrentMap<String, PreparedStatement> statements = new ConcurrentHashMap<String, PreparedStatement>();
     
     // keeping the cluster around is not too important. However, it is handy for when a session needs to be recreated.
     private Cluster cluster;
@@ -83,21 +109,75 @@ public class CassandraIO implements IO {
      */
     public CassandraIO clone(String newRowPrefix) {
         CassandraIO io = new CassandraIO(newRowPrefix, columnSize, keyspace, columnFamily);
+        io.fetchSize = this.fetchSize;
+        io.maxBatchBytes = this.maxBatchBytes;
+        io.maxBatchesInFlight = this.maxBatchesInFlight;
+        io.readConsistency = this.readConsistency;
+        io.writeConsistency = this.writeConsistency;
+        io.statements = this.statements;
         io.session = this.session;
         io.cluster = this.cluster;
         return io;
     }
 
     /**
-     * connect to a cluster and build a session.
+     * Set the page size used when iterating rows. Smaller pages use less memory, larger pages take fewer round trips.
+     */
+    public CassandraIO withFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+        return this;
+    }
+    
+    /**
+     * Set how many bytes of values putColumns() sends in one unlogged batch. A column bigger than this still goes by
+     * itself. 0 sends every column as its own insert.
+     */
+    public CassandraIO withMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+    
+    /** Set how many batches one putColumns() waits on at a time. */
+    public CassandraIO withMaxBatchesInFlight(int maxBatchesInFlight) {
+        this.maxBatchesInFlight = Math.max(1, maxBatchesInFlight);
+        return this;
+    }
+    
+    /** set the consistency levels for reads and for writes (deletes included). */
+    public CassandraIO withConsistency(ConsistencyLevel read, ConsistencyLevel write) {
+        this.readConsistency = read;
+        this.writeConsistency = write;
+        return this;
+    }
+
+    /**
+     * connect to a cluster and build a session. the fetch size and consistency levels already set on this instance are
+     * kept.
      * @param addr a host:port tuple
      * @return this instance.
      */
     public CassandraIO start(String addr) {
+        return start(addr, new CassandraConfig()
+                .withFetchSize(fetchSize)
+                .withReadConsistency(readConsistency)
+                .withWriteConsistency(writeConsistency));
+    }
+    
+    /**
+     * connect to a cluster and build a session, set up the way a config says. the config's fetch size and consistency
+     * levels replace the ones set on this instance.
+     * @param addr a host:port tuple
+     * @return this instance.
+     */
+    public CassandraIO start(String addr, CassandraConfig config) {
         try {
-            cluster = Cluster.builder()
+            cluster = config.builder()
                     .addContactPointsWithPorts(asSocketAddresses(addr))
                     .build();
+            fetchSize = config.fetchSize();
+            readConsistency = config.readConsistency();
+            writeConsistency = config.writeConsistency();
+            statements.clear();
             ensureSession();
         } catch (UnknownHostException ex) {
             throw new RuntimeException(ex);
@@ -111,6 +191,7 @@ public class CassandraIO implements IO {
     public CassandraIO session(Session session) {
         this.session = session;
         this.cluster = session.getCluster();
+        this.statements = new ConcurrentHashMap<String, PreparedStatement>();
         return this;
     }
     
@@ -142,68 +223,180 @@ public class CassandraIO implements IO {
     /** @inheritDoc */
     @Override
     public void put(String key, long col, byte[] value) throws IOException {
+        putBuffer(key, col, ByteBuffer.wrap(value));
+    }
+
+    /** @inheritDoc */
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        ensureSession();
+        session.execute(insert(prefix(key), col, value));
+    }
+    
+    /**
+     * Writes the columns in unlogged batches of up to maxBatchBytes, up to maxBatchesInFlight at a time. Every column
+     * is in the same partition, so the batches skip the batch log and each one is applied by the replicas as a single
+     * mutation.
+     */
+    @Override
+    public void putColumns(String key, Collection<Column> columns) throws IOException {
         ensureSession();
         String prefixedKey = prefix(key);
-        BatchStatement batch = new BatchStatement();
-        PreparedStatement stmt = session.prepare(String.format("insert into %s.%s (key, name, value) values(?, ?, ?);", keyspace, columnFamily));
-        BoundStatement bndStmt = new BoundStatement(stmt.setConsistencyLevel(ConsistencyLevel.ONE));
-        batch.add(bndStmt.bind(prefixedKey, col, ByteBuffer.wrap(value)));
-        session.execute(batch);
+        Deque<ResultSetFuture> futures = new ArrayDeque<ResultSetFuture>();
+        Throwable failure = null;
+        BatchStatement batch = null;
+        int batchBytes = 0;
+        for (Column column : columns) {
+            int bytes = column.value().remaining();
+            if (batch != null && batchBytes + bytes > maxBatchBytes) {
+                // make room first. once something has failed there is no point in sending more.
+                while (futures.size() >= maxBatchesInFlight) {
+                    failure = firstFailure(failure, futures.poll());
+                }
+                if (failure != null) {
+                    break;
+                }
+                futures.add(session.executeAsync(batch));
+                batch = null;
+            }
+            if (batch == null) {
+                batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+                batch.setConsistencyLevel(writeConsistency);
+                batchBytes = 0;
+            }
+            batch.add(insert(prefixedKey, column.col(), column.value()));
+            batchBytes += bytes;
+        }
+        if (batch != null && failure == null) {
+            futures.add(session.executeAsync(batch));
+        }
+        
+        // wait for the rest, even after a failure, so nothing is still being written when this returns.
+        while (!futures.isEmpty()) {
+            failure = firstFailure(failure, futures.poll());
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException)failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+    
+    // wait for a write. keeps the earliest failure.
+    private static Throwable firstFailure(Throwable failure, ResultSetFuture future) {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException ex) {
+            return failure == null ? ex.getCause() : failure;
+        }
+        return failure;
+    }
+    
+    private BoundStatement insert(String prefixedKey, long col, ByteBuffer value) {
+        return bind(String.format("insert into %s.%s (key, name, value) values(?, ?, ?);", keyspace, columnFamily), writeConsistency, prefixedKey, col, value);
     }
 
     /** @inheritDoc */
     @Override
     public byte[] get(String key, long col) throws IOException {
+        ByteBuffer bb = getBuffer(key, col);
+        if (bb == null) {
+            return null;
+        }
+        byte[] b = new byte[bb.remaining()];
+        bb.get(b);
+        return b;
+    }
+
+    /** returns the buffer the driver decoded the value into. no copies. */
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
         ensureSession();
         String prefixedKey = prefix(key);
-        PreparedStatement stmt = session.prepare(String.format("select value from %s.%s where key = ? and name = ?", keyspace, columnFamily));
-        BoundStatement bndStmt = new BoundStatement(stmt.setConsistencyLevel(ConsistencyLevel.ONE));
-        ResultSet rs = session.execute(bndStmt.bind(prefixedKey, col));
+        ResultSet rs = session.execute(bind(String.format("select value from %s.%s where key = ? and name = ?", keyspace, columnFamily), readConsistency, prefixedKey, col));
         Row row = rs.one();
         if (row == null) {
             return null;
         }
-        ByteBuffer bb = row.getBytes("value");
-        byte[] b = new byte[bb.remaining()];
-        bb.get(b);
-        return b;
+        return row.getBytes("value").asReadOnlyBuffer();
     }
 
     /** @inheritDoc */
     @Override
     public Iterable<byte[]> allValues(String key) throws IOException {
+        return Iterables.transform(rows(key, "value"), new Function<Row, byte[]>() {
+            @Override
+            public byte[] apply(Row row) {
+                return Utils.toBytes(row.getBytes(0));
+            }
+        });
+    }
+
+    /** @inheritDoc */
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        return Iterables.transform(rows(key, "name, value"), new Function<Row, Column>() {
+            @Override
+            public Column apply(Row row) {
+                return new Column(row.getLong(0), row.getBytes(1).asReadOnlyBuffer());
+            }
+        });
+    }
+    
+    /** one query, no matter how many columns. */
+    @Override
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
         ensureSession();
-        String prefixedKey = prefix(key);
-        PreparedStatement stmt = session.prepare(String.format("select value from %s.%s where key = ?", keyspace, columnFamily));
-        BoundStatement bndStmt = new BoundStatement(stmt.setConsistencyLevel(ConsistencyLevel.ONE));
-        ResultSet rs = session.execute(bndStmt.bind(prefixedKey));
-        List<byte[]> values = new ArrayList<byte[]>();
-        for (Row row : rs.all()) {
-            values.add(toBytes(row.getBytes(0)));
-        }
-        return values;
+        String cql = String.format("select name, value from %s.%s where key = ? and name >= ? and name < ?", keyspace, columnFamily);
+        return Iterables.transform(query(cql, prefix(key), fromCol, toCol), new Function<Row, Column>() {
+            @Override
+            public Column apply(Row row) {
+                return new Column(row.getLong(0), row.getBytes(1).asReadOnlyBuffer());
+            }
+        });
     }
     
-    // copied from org.apache.cassandra.utils.ByteBufferUtil.getArray(ByteBuffer).  
-    /**
-     * You should almost never use this.  Instead, use the write* methods to avoid copies.
-     */
-    private byte[] toBytes(ByteBuffer buffer) {
-        int length = buffer.remaining();
-
-        if (buffer.hasArray())
-        {
-            int boff = buffer.arrayOffset() + buffer.position();
-            if (boff == 0 && length == buffer.array().length)
-                return buffer.array();
-            else
-                return Arrays.copyOfRange(buffer.array(), boff, boff + length);
+    /** @inheritDoc */
+    @Override
+    public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException {
+        ensureSession();
+        if (cols.isEmpty()) {
+            return new ArrayList<Column>();
         }
-        // else, DirectByteBuffer.get() is the fastest route
-        byte[] bytes = new byte[length];
-        buffer.duplicate().get(bytes);
-
-        return bytes;
+        // one marker per column.
+        StringBuilder markers = new StringBuilder("?");
+        for (int i = 1; i < cols.size(); i++) {
+            markers.append(", ?");
+        }
+        String cql = String.format("select name, value from %s.%s where key = ? and name in (%s)", keyspace, columnFamily, markers);
+        List<Object> values = new ArrayList<Object>(cols.size() + 1);
+        values.add(prefix(key));
+        values.addAll(cols);
+        return Iterables.transform(query(cql, values.toArray()), new Function<Row, Column>() {
+            @Override
+            public Column apply(Row row) {
+                return new Column(row.getLong(0), row.getBytes(1).asReadOnlyBuffer());
+            }
+        });
+    }
+    
+    // lazily select columns from a row.
+    private Iterable<Row> rows(String key, String what) {
+        ensureSession();
+        return query(String.format("select %s from %s.%s where key = ?", what, keyspace, columnFamily), prefix(key));
+    }
+    
+    // nothing is queried until iteration starts, and then the driver pages through the results fetchSize columns at a
+    // time. each call to iterator() runs the query again.
+    private Iterable<Row> query(String cql, Object... values) {
+        final BoundStatement bndStmt = bind(cql, readConsistency, values);
+        bndStmt.setFetchSize(fetchSize);
+        return new Iterable<Row>() {
+            @Override
+            public Iterator<Row> iterator() {
+                return session.execute(bndStmt).iterator();
+            }
+        };
     }
 
     /** @inheritDoc */
@@ -217,13 +410,7 @@ public class CassandraIO implements IO {
     public void delete(String key) throws IOException {
         ensureSession();
         String prefixedKey = prefix(key);
-        BatchStatement delBatch = new BatchStatement();
-        
-        PreparedStatement stmt = session.prepare(String.format("delete from %s.%s where key = ?", keyspace, columnFamily));
-        BoundStatement bndStmt = new BoundStatement(stmt.setConsistencyLevel(ConsistencyLevel.ONE));
-        delBatch = delBatch.add(bndStmt.bind(prefixedKey));
-        
-        session.execute(delBatch);
+        session.execute(bind(String.format("delete from %s.%s where key = ?", keyspace, columnFamily), writeConsistency, prefixedKey));
     }
 
     /** @inheritDoc */
@@ -231,9 +418,7 @@ public class CassandraIO implements IO {
     public void delete(String key, long col) throws IOException {
         ensureSession();
         String prefixedKey = prefix(key);
-        PreparedStatement stmt = session.prepare(String.format("delete from %s.%s where key = ? and name = ?", keyspace, columnFamily));
-        BoundStatement bndStmt = new BoundStatement(stmt.setConsistencyLevel(ConsistencyLevel.ONE));
-        session.execute(bndStmt.bind(prefixedKey, col));
+        session.execute(bind(String.format("delete from %s.%s where key = ? and name = ?", keyspace, columnFamily), writeConsistency, prefixedKey, col));
     }
 
     /** @inheritDoc */
@@ -243,13 +428,25 @@ public class CassandraIO implements IO {
         // return get(key, 0L) != null;
         ensureSession();
         String prefixedKey = prefix(key);
-        PreparedStatement stmt = session.prepare(String.format("select value from %s.%s where key = ? limit 1", keyspace, columnFamily));
-        BoundStatement bndStmt = new BoundStatement(stmt.setConsistencyLevel(ConsistencyLevel.ONE));
-        ResultSet rs = session.execute(bndStmt.bind(prefixedKey));
-        List<byte[]> values = new ArrayList<byte[]>();
+        ResultSet rs = session.execute(bind(String.format("select value from %s.%s where key = ? limit 1", keyspace, columnFamily), readConsistency, prefixedKey));
         return rs.one() != null;
     }
     
+    // statements are only prepared once. (the driver complains about preparing the same thing twice.)
+    private BoundStatement bind(String cql, ConsistencyLevel level, Object... values) {
+        PreparedStatement stmt = statements.get(cql);
+        if (stmt == null) {
+            stmt = session.prepare(cql);
+            PreparedStatement raced = statements.putIfAbsent(cql, stmt);
+            if (raced != null) {
+                stmt = raced;
+            }
+        }
+        BoundStatement bndStmt = stmt.bind(values);
+        bndStmt.setConsistencyLevel(level);
+        return bndStmt;
+    }
+    
     // prefix a key in the standard way.
     private String prefix(String key) {
         return String.format("%s/%s", rowPrefix, key);
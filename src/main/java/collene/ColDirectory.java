@@ -17,6 +17,10 @@
 package collene;
 
 import collene.cache.CachingIO;
+import collene.cache.EvictionStrategy;
+import collene.trace.TraceWriter;
+import collene.trace.TracingIO;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
@@ -26,13 +30,44 @@ import org.apache.lucene.store.LockFactory;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This is where the work is done. ColDirectory leverages the data access provided by IO implementations to provide
  * a Lucene compatible API experience.
  */
 public class ColDirectory extends Directory {
+    public static final int DEFAULT_READ_AHEAD = 32;
+    public static final int DEFAULT_COPY_THREADS = 4;
+    public static final int DEFAULT_INLINE_THRESHOLD = 512;
+    
+    // how many columns a copy task reads in one go.
+    private static final int COPY_BATCH = 32;
+    
+    // runs column copies. threads are daemons and go away when idle, so nobody needs to shut this down.
+    private static final ExecutorService COPIER = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(0);
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, String.format("ColDirectory-copier-%d", count.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
     // I'm starting to think that the concept of "name" should be baked in at the IO level and not exposed here. This
     // already has shaken out in the CassandraIO implementation by using a "rowPrefix". It is essentially a "name" and
     // is used to namespace an index. For this class, it serves to uniquely identify a lock that must be held in order
@@ -52,6 +87,31 @@ public class ColDirectory extends Directory {
     // keeps track of "file" meta information.
     private RowMeta meta;
     
+    // optional column cache shared by every input this directory opens. Lucene files never change once written, so 
+    // cached columns stay good across reader reopens until the file is deleted.
+    private CachingIO sharedCache = null;
+    
+    // read policies that override the IOContext, by file extension.
+    private final Map<String, ReadPolicy> readPolicies = new HashMap<String, ReadPolicy>();
+    
+    // how many columns READ_AHEAD inputs fetch at a time.
+    private int readAhead = DEFAULT_READ_AHEAD;
+    
+    // how many tasks a copy out of this directory runs at once. each one copies a batch of columns at a time.
+    private int copyThreads = DEFAULT_COPY_THREADS;
+    
+    // column sizes for new files, by file extension. other files use the column size of the IO.
+    private final Map<String, Integer> columnSizes = new HashMap<String, Integer>();
+    
+    // new files up to this size are kept with their meta data.
+    private int inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+    
+    // reads through the shared cache (and deletes) are recorded here, if anywhere.
+    private TraceWriter tracer = null;
+    
+    // snapshots can be read, but not changed.
+    private boolean readOnly = false;
+    
     private ColDirectory(String name, IO indexIO, RowMeta meta, LockFactory lockFactory) {
         
         if (lockFactory == null) {
@@ -89,6 +149,137 @@ public class ColDirectory extends Directory {
         return this;
     }
     
+    /**
+     * Share one column cache between all inputs opened by this directory. Near-real-time readers benefit the most:
+     * segments that did not change keep their warm columns when DirectoryReader.openIfChanged() reopens them, and
+     * only new files need to be fetched.
+     */
+    public ColDirectory withSharedCache(EvictionStrategy evictionStrategy) {
+        sharedCache = new CachingIO(indexIO, false, evictionStrategy);
+        return this;
+    }
+    
+    /**
+     * Record the reads that go through the shared cache (or would, if there is none) and file deletes, so TraceReplay
+     * can try other cache setups against them later.
+     */
+    public ColDirectory withTracing(TraceWriter tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+    
+    /**
+     * Read files with a given extension (no dot, "segments" for segments_N) the same way no matter which IOContext
+     * they are opened with. For example, stored fields are rarely worth caching.
+     */
+    public ColDirectory withReadPolicy(String extension, ReadPolicy policy) {
+        readPolicies.put(extension, policy);
+        return this;
+    }
+    
+    /** set how many columns READ_AHEAD inputs fetch in one go. */
+    public ColDirectory withReadAhead(int columns) {
+        readAhead = columns;
+        return this;
+    }
+    
+    /**
+     * Write new files with a given extension (no dot, "segments" for segments_N) using a different column size. Large 
+     * files that get read sequentially (e.g., "doc", "pos") take far fewer round trips with large columns. There is 
+     * no need to do anything about small files: the last column of every file is trimmed, so a file smaller than a
+     * column is stored at its exact size.
+     */
+    public ColDirectory withColumnSize(String extension, int colSize) {
+        columnSizes.put(extension, colSize);
+        return this;
+    }
+    
+    /**
+     * Keep new files up to this many bytes with their meta data instead of in the index IO. Lucene writes lots of tiny 
+     * files (segments.gen, .si, .fnm, locks) and each one would otherwise cost a data write on top of the meta data 
+     * writes, and two reads instead of one. 0 turns this off.
+     */
+    public ColDirectory withInlineThreshold(int bytes) {
+        inlineThreshold = bytes;
+        return this;
+    }
+    
+    /**
+     * Move the list of files to a fresh row after this many deletes, so listing does not slow down as merges pile up
+     * tombstones in it. 0 never does. See RowMeta.
+     */
+    public ColDirectory withMaxListTombstones(int max) {
+        meta.withMaxListTombstones(max);
+        return this;
+    }
+    
+    /** set how many tasks copy columns out of this directory at once when rows cannot be linked. */
+    public ColDirectory withCopyThreads(int threads) {
+        copyThreads = Math.max(1, threads);
+        return this;
+    }
+    
+    /**
+     * Preload the files a warmer is interested in into the shared cache. Do this after opening or reopening a reader
+     * so the first query is not the slow one.
+     * @return the number of bytes warmed.
+     */
+    public long warm(Warmer warmer) throws IOException {
+        if (sharedCache == null) {
+            throw new IllegalStateException("Warming needs a shared cache. See withSharedCache()");
+        }
+        return warmer.warm(this, sharedCache);
+    }
+    
+    // the IO holding file data.
+    IO indexIO() {
+        return indexIO;
+    }
+    
+    // file meta information.
+    RowMeta meta() {
+        return meta;
+    }
+    
+    // the column size a file was written with.
+    int colSize(String name) throws IOException {
+        int colSize = meta.getColSize(name);
+        return colSize > 0 ? colSize : indexIO.getColSize();
+    }
+    
+    // note the column size of a file that is about to have its length set.
+    void recordColSize(String name, int colSize) {
+        meta.setColSize(name, colSize == indexIO.getColSize() ? 0 : colSize);
+    }
+    
+    // give a file the meta data (length, column size, inline data) of a file in another directory.
+    void copyMeta(ColDirectory from, String src, String dest, boolean commit) throws IOException {
+        recordColSize(dest, from.colSize(src));
+        meta.setInline(dest, from.meta.getInline(src));
+        meta.setLength(dest, from.meta.getLength(src), commit);
+    }
+    
+    /** @return a number that changes every time a file is added, removed or committed. */
+    public long generation() throws IOException {
+        return meta.generation();
+    }
+    
+    /** @return the number of deleted files the list of files has to scan past (as far as this instance knows). */
+    public long listTombstones() throws IOException {
+        return meta.listTombstones();
+    }
+    
+    private IO traced(IO io) {
+        return tracer == null ? io : new TracingIO(io, tracer);
+    }
+    
+    // drop anything cached for a file.
+    private void uncache(String name) {
+        if (sharedCache != null) {
+            sharedCache.invalidate(name);
+        }
+    }
+    
     /** all bits of data associated with this index. includes locks, etc. */
     @Override
     public String[] listAll() throws IOException {
@@ -98,7 +289,9 @@ public class ColDirectory extends Directory {
     /** delete a file */
     @Override
     public void deleteFile(String name) throws IOException {
-        indexIO.delete(name);
+        checkWritable();
+        uncache(name);
+        traced(indexIO).delete(name);
         meta.delete(name);
     }
 
@@ -150,16 +343,38 @@ public class ColDirectory extends Directory {
         return this.lockFactory;
     }
 
-    /** @inheritDoc */
+    /**
+     * @inheritDoc
+     * Writes never go through the shared cache, so flushes and merges cannot push search columns out of it.
+     */
     @Override
     public IndexOutput createOutput(String name, IOContext context) throws IOException {
-        return new RowIndexOutput(name, new RowWriter(name, indexIO, meta));
+        checkWritable();
+        uncache(name);
+        String extension = Utils.fileExtension(name);
+        Integer colSize = extension == null ? null : columnSizes.get(extension);
+        return new RowIndexOutput(name, new RowWriter(name, indexIO, meta, colSize == null ? 0 : colSize, inlineThreshold));
     }
 
-    /** @inheritDoc */
+    /** 
+     * Search reads go through the shared cache. Files read once skip caching and merges read ahead instead, so 
+     * neither evicts what searches need. See withReadPolicy() to change this for some files.
+     */
     @Override
     public IndexInput openInput(String name, IOContext context) throws IOException {
-        IndexInput input = new RowIndexInput(name, new RowReader(name, indexIO, meta));
+        RowReader reader;
+        switch (readPolicy(name, context)) {
+            case UNCACHED:
+                // whatever is already cached (e.g., by a warmer) is still fair game.
+                reader = new RowReader(name, sharedCache == null ? indexIO : sharedCache.passive(), meta, false);
+                break;
+            case READ_AHEAD:
+                reader = new RowReader(name, new ReadAheadIO(indexIO, readAhead), meta, false);
+                break;
+            default:
+                reader = new RowReader(name, traced(sharedCache == null ? indexIO : sharedCache), meta);
+        }
+        IndexInput input = new RowIndexInput(name, reader);
         
         // we cannot read a file that does not exist. Lucene relies on the fact that this method will throw an exception
         // when a file is not present.
@@ -172,10 +387,30 @@ public class ColDirectory extends Directory {
         return input;
     }
 
+    // an extension override wins. otherwise go by what Lucene says it is doing.
+    private ReadPolicy readPolicy(String name, IOContext context) {
+        String extension = Utils.fileExtension(name);
+        ReadPolicy policy = extension == null ? null : readPolicies.get(extension);
+        if (policy != null) {
+            return policy;
+        } else if (context.readOnce) {
+            return ReadPolicy.UNCACHED;
+        } else if (context.context == IOContext.Context.MERGE) {
+            return ReadPolicy.READ_AHEAD;
+        } else {
+            return ReadPolicy.CACHED;
+        }
+    }
+
     /** for us, a file exists if it has meta data and its length is >= 0. */
     @Override
     public boolean fileExists(String s) throws IOException {
-        return meta.getLength(s) > -1;
+        // meta data throws for files it has never heard of (openInput() counts on that).
+        try {
+            return meta.getLength(s) > -1;
+        } catch (NullPointerException ex) {
+            return false;
+        }
     }
 
     /** @inheritDoc */
@@ -197,11 +432,152 @@ public class ColDirectory extends Directory {
     public void copy(Directory to, String src, String dest, IOContext context) throws IOException {
         if (canFastCopy(this, to)) {
             fastCopy(to, src, dest, context);
+        } else if (canColumnCopy(this, to)) {
+            columnCopy((ColDirectory)to, src, dest);
         } else {
             super.copy(to, src, dest, context);
         }
     }
 
+    /**
+     * Make this directory a copy of the latest commit of another one. Rows are linked when both directories can do 
+     * fast copies (the source keeps its files, the rows are shared), and columns are copied otherwise. Every file is 
+     * worked on at once, and the file lengths are committed in one go when the data is all there. Files in this
+     * directory with the same names are replaced. Nothing else in this directory is touched.
+     * 
+     * This is much quicker than IndexWriter.addIndexes() for standing up an index from an existing one (e.g., for 
+     * blue/green reindexing). 
+     * @return the names of the files cloned.
+     */
+    public Collection<String> cloneFrom(ColDirectory source) throws IOException {
+        checkWritable();
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(source);
+        Collection<String> files = infos.files(source, true);
+        
+        Map<String, Long> lengths = new HashMap<String, Long>();
+        Map<String, Integer> colSizes = new HashMap<String, Integer>();
+        // inline files have no row. their data comes along with the rest of their meta data.
+        List<String> rowFiles = new ArrayList<String>();
+        for (String file : files) {
+            lengths.put(file, source.meta.getLength(file));
+            colSizes.put(file, source.colSize(file));
+            if (source.meta.getInline(file) == null) {
+                rowFiles.add(file);
+            }
+            uncache(file);
+        }
+        
+        List<Callable<Void>> work = new ArrayList<Callable<Void>>();
+        if (canFastCopy(source, this)) {
+            final TranslateIO toIO = (TranslateIO)indexIO;
+            for (final Map.Entry<String, String> entry : ((TranslateIO)source.indexIO).translate(rowFiles).entrySet()) {
+                work.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        toIO.link(entry.getKey(), entry.getValue());
+                        return null;
+                    }
+                });
+            }
+        } else {
+            for (String file : rowFiles) {
+                addColumnCopies(work, source.indexIO, file, indexIO, file, lengths.get(file), colSizes.get(file));
+            }
+        }
+        runAll(work, source.copyThreads);
+        
+        // make the files visible all at once.
+        for (String file : files) {
+            copyMeta(source, file, file, false);
+        }
+        meta.flush(true);
+        return files;
+    }
+
+    /**
+     * Record the files of the latest commit and the rows that hold them. Nothing gets copied. The rows are retained,
+     * so they stay around after the files are deleted here (e.g., merged away) until the snapshot is released. Only
+     * works when the index is stored with a TranslateIO.
+     * @return the snapshot.
+     */
+    public Snapshot snapshot(String snapshotName) throws IOException {
+        checkWritable();
+        TranslateIO io = snapshotIO();
+        if (meta.getSnapshot(snapshotName) != null) {
+            throw new IOException(String.format("Snapshot %s already exists", snapshotName));
+        }
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(this);
+        Map<String, Long> lengths = new HashMap<String, Long>();
+        Map<String, Integer> colSizes = new HashMap<String, Integer>();
+        Map<String, byte[]> inlines = new HashMap<String, byte[]>();
+        // inline files have no row to hold on to. the snapshot keeps their data instead.
+        List<String> rowFiles = new ArrayList<String>();
+        for (String file : infos.files(this, true)) {
+            lengths.put(file, meta.getLength(file));
+            colSizes.put(file, meta.getColSize(file));
+            byte[] inline = meta.getInline(file);
+            if (inline != null) {
+                inlines.put(file, inline);
+            } else {
+                rowFiles.add(file);
+            }
+        }
+        Map<String, String> rows = io.translate(rowFiles);
+        for (String row : rows.values()) {
+            io.retain(row);
+        }
+        Snapshot snapshot = new Snapshot(snapshotName, rows, lengths, colSizes, inlines);
+        meta.putSnapshot(snapshot);
+        return snapshot;
+    }
+    
+    /** @return a read-only directory holding the files of a snapshot. */
+    public ColDirectory openSnapshot(String snapshotName) throws IOException {
+        snapshotIO();
+        Snapshot snapshot = meta.getSnapshot(snapshotName);
+        if (snapshot == null) {
+            throw new FileNotFoundException(String.format("Snapshot %s does not exist", snapshotName));
+        }
+        TranslateIO io = new TranslateIO(snapshot.translate(), ((TranslateIO)indexIO).underlying());
+        RowMeta snapshotMeta = snapshot.meta(io);
+        ColDirectory dir = new ColDirectory(String.format("%s@%s", name, snapshotName), io, snapshotMeta, new IoLockFactory(io, snapshotMeta));
+        dir.readOnly = true;
+        return dir;
+    }
+    
+    /** drop a snapshot. rows that only the snapshot was holding on to are reclaimed. */
+    public void releaseSnapshot(String snapshotName) throws IOException {
+        checkWritable();
+        TranslateIO io = snapshotIO();
+        Snapshot snapshot = meta.getSnapshot(snapshotName);
+        if (snapshot == null) {
+            return;
+        }
+        meta.deleteSnapshot(snapshotName);
+        for (String file : snapshot.files()) {
+            if (snapshot.row(file) != null) {
+                io.release(snapshot.row(file));
+            }
+        }
+    }
+    
+    // snapshots are made of translated rows.
+    private TranslateIO snapshotIO() throws IOException {
+        if (!(indexIO instanceof TranslateIO)) {
+            throw new IOException(String.format("%s cannot have snapshots, it does not use a TranslateIO", name));
+        }
+        return (TranslateIO)indexIO;
+    }
+    
+    // snapshots cannot be changed.
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException(name + " is read-only");
+        }
+    }
+    
     /**
      * Fast copy works by adding a layer of indirection (rows are not really named what you think they are) simply 
      * changing the labels on rows to effect a copy. In general, we can do a fast copy if both directories are 
@@ -231,6 +607,7 @@ public class ColDirectory extends Directory {
     private void fastCopy(Directory to, String src, String dest, IOContext context) throws IOException {
         ColDirectory cto = (ColDirectory)to;
         ColDirectory cfrom = this;
+        cto.checkWritable();
         
         TranslateIO fromIO = (TranslateIO)cfrom.indexIO;
         TranslateIO toIO = (TranslateIO)cto.indexIO;
@@ -238,12 +615,133 @@ public class ColDirectory extends Directory {
         //System.out.println(String.format("copying %s->%s by linking %s->%s", src, dest, dest, fromIO.translate(src)));
         
         // link the file names
+        cto.uncache(dest);
         toIO.link(dest, fromIO.translate(src));
         
         // also set the length (so the file can be discovered later)
-        cto.meta.setLength(dest, cfrom.meta.getLength(src), true);
+        cto.copyMeta(cfrom, src, dest, true);
         
-        // and remove from the src.
+        // and remove from the src. the data row lives on because dest now holds a reference to it. snapshots keep
+        // their files, which makes this a cheap way to restore one.
+        if (cfrom.readOnly) {
+            return;
+        }
+        cfrom.uncache(src);
+        fromIO.delete(src);
         cfrom.meta.delete(src);
     }
+    
+    // whole column values can be moved between any two ColDirectories. the column size goes along with the file.
+    private static boolean canColumnCopy(Directory from, Directory to) {
+        return from instanceof ColDirectory && to instanceof ColDirectory;
+    }
+    
+    /**
+     * Copies a file a column at a time, straight from one IO to the other. Nothing goes through RowIndexInput or 
+     * RowIndexOutput: there are no per-byte reads, no read-before-write and no checksumming (the footer gets copied 
+     * like everything else). Columns are read in batches and spread over several tasks, and the length is set once 
+     * everything has landed, so the file does not exist at dest until it is complete.
+     */
+    private void columnCopy(ColDirectory cto, String src, String dest) throws IOException {
+        cto.checkWritable();
+        long length = meta.getLength(src);
+        if (length < 0) {
+            throw new FileNotFoundException(src + " does not exist");
+        }
+        cto.uncache(dest);
+        int colSize = colSize(src);
+        copyColumns(indexIO, src, cto.indexIO, dest, length, colSize, copyThreads);
+        cto.copyMeta(this, src, dest, true);
+    }
+    
+    // copy the columns of a row using up to a number of parallel tasks.
+    static void copyColumns(IO from, String src, IO to, String dest, long length, int colSize, int tasks) throws IOException {
+        List<Callable<Void>> work = new ArrayList<Callable<Void>>();
+        addColumnCopies(work, from, src, to, dest, length, colSize);
+        runAll(work, tasks);
+    }
+    
+    // add one unit of work per batch of columns in a row.
+    private static void addColumnCopies(List<Callable<Void>> work, final IO from, final String src, final IO to, final String dest, long length, int colSize) {
+        final long cols = (length + colSize - 1) / colSize;
+        for (long batch = 0; batch < copyBatches(length, colSize); batch++) {
+            final long b = batch;
+            work.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    copyBatch(from, src, to, dest, b, cols);
+                    return null;
+                }
+            });
+        }
+    }
+    
+    // the number of batches a row of a given length gets copied in.
+    static long copyBatches(long length, int colSize) {
+        long cols = (length + colSize - 1) / colSize;
+        return (cols + COPY_BATCH - 1) / COPY_BATCH;
+    }
+    
+    // the number of bytes in one of those batches.
+    static long copyBatchBytes(long length, int colSize, long batch) {
+        long batchBytes = (long)COPY_BATCH * colSize;
+        return Math.max(0, Math.min(length, (batch + 1) * batchBytes) - batch * batchBytes);
+    }
+    
+    // read a batch of columns (stopping short of endCol) and write them somewhere else. returns the bytes copied.
+    static long copyBatch(IO from, String src, IO to, String dest, long batch, long endCol) throws IOException {
+        long fromCol = batch * COPY_BATCH;
+        long bytes = 0;
+        for (Column column : Utils.getRange(from, src, fromCol, Math.min(fromCol + COPY_BATCH, endCol))) {
+            bytes += column.value().remaining();
+            Utils.putBuffer(to, dest, column.col(), column.value());
+        }
+        return bytes;
+    }
+    
+    // do all the work using up to a number of tasks, which pull units of work until there are none left.
+    static void runAll(List<Callable<Void>> work, int tasks) throws IOException {
+        final Queue<Callable<Void>> queue = new ConcurrentLinkedQueue<Callable<Void>>(work);
+        tasks = Math.max(1, Math.min(tasks, work.size()));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            futures.add(COPIER.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Callable<Void> unit;
+                    while ((unit = queue.poll()) != null) {
+                        try {
+                            unit.call();
+                        } catch (Exception ex) {
+                            // no point in anybody else carrying on.
+                            queue.clear();
+                            throw ex;
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        waitFor(futures);
+    }
+    
+    // wait for every task to finish. the first failure is rethrown.
+    static void waitFor(Collection<? extends Future<?>> futures) throws IOException {
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    failure = ex.getCause() instanceof IOException ? (IOException)ex.getCause() : new IOException(ex.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 }
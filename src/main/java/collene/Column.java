@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A (column, value) pair. The value is a read-only buffer that may share memory with whatever the IO got it from
+ * (a driver buffer, a cached array, etc.), so it is not copied unless you copy it.
+ */
+public class Column {
+    private final long col;
+    private final ByteBuffer value;
+
+    public Column(long col, ByteBuffer value) {
+        this.col = col;
+        this.value = value;
+    }
+
+    public long col() {
+        return col;
+    }
+
+    public ByteBuffer value() {
+        return value;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Stores every distinct column value once. Re-indexing, merges and copies write the same values over and over (zero
+ * padding, stored field blocks shared by clones, whole segments copied between directories), and this keeps the store
+ * from filling up with them.
+ *
+ * How this works.
+ * 1. a value is keyed by its SHA-256 hash and lives in column 0 of its own row (VALUE_PREFIX/hash).
+ * 2. a (key, col) holds the 32-byte hash of its value instead of the value.
+ * 3. every (key, col) pointing at a value has a column in the value's reference row (REF_PREFIX/hash). When the last
+ *    one goes away, so does the value. References are columns rather than a counter so that adding one is a blind
+ *    write.
+ *
+ * An in-memory bloom filter remembers which values this instance has seen. A value it has never seen is written
+ * without asking the store whether it is there already. For anything else the store is asked, and the value is only
+ * written if it is missing. False positives cost a read, never data.
+ *
+ * Reads cost two trips (the pointer, then the value), and so does overwriting a column, because the old value has to
+ * lose its reference. Put a cache in front of this.
+ */
+public class DedupIO implements IO {
+    // rows holding values, keyed by their hashes.
+    public static final String VALUE_PREFIX = "__COLLENE_VALUE__";
+
+    // rows holding the references to a value.
+    public static final String REF_PREFIX = "__COLLENE_VALUE_REFS__";
+
+    public static final long DEFAULT_EXPECTED_VALUES = 1000000L;
+    public static final double DEFAULT_FALSE_POSITIVES = 0.01d;
+
+    // adding and removing references to a value has to be atomic with writing or deleting it.
+    private static final Striped<Lock> valueLocks = Striped.lock(64);
+    
+    // so does swapping the value a column points at. two writers would both release the old value.
+    private static final Striped<Lock> columnLocks = Striped.lock(64);
+
+    private final IO io;
+
+    // values this instance has written or seen written.
+    private BloomFilter<byte[]> seen;
+
+    // puts that did not have to write a value.
+    private final AtomicLong dedupedPuts = new AtomicLong(0);
+
+    public DedupIO(IO io) {
+        this.io = io;
+        this.seen = newFilter(DEFAULT_EXPECTED_VALUES, DEFAULT_FALSE_POSITIVES);
+    }
+
+    /** size the presence filter for a number of distinct values, at a false positive rate. this empties it. */
+    public synchronized DedupIO withExpectedValues(long values, double falsePositives) {
+        seen = newFilter(values, falsePositives);
+        return this;
+    }
+
+    @Override
+    public void put(String key, long col, byte[] value) throws IOException {
+        byte[] hash = Hashing.sha256().hashBytes(value).asBytes();
+        Lock lock = columnLock(key, col);
+        lock.lock();
+        try {
+            byte[] previous = io.get(key, col);
+            if (previous != null && Arrays.equals(previous, hash)) {
+                dedupedPuts.incrementAndGet();
+                return;
+            }
+            retain(hash, key, col, value);
+            io.put(key, col, hash);
+            if (previous != null) {
+                release(previous, key, col);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        return resolve(key, col, io.get(key, col));
+    }
+
+    @Override
+    public int getColSize() {
+        return io.getColSize();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        for (Column column : Utils.asCollection(io.allColumns(key))) {
+            Lock lock = columnLock(key, column.col());
+            lock.lock();
+            try {
+                // it may have been overwritten since the scan. the row delete takes care of the column itself.
+                byte[] hash = io.get(key, column.col());
+                if (hash != null) {
+                    release(hash, key, column.col());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        io.delete(key);
+    }
+
+    @Override
+    public void delete(String key, long col) throws IOException {
+        Lock lock = columnLock(key, col);
+        lock.lock();
+        try {
+            byte[] hash = io.get(key, col);
+            if (hash != null) {
+                io.delete(key, col);
+                release(hash, key, col);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasKey(String key) throws IOException {
+        return io.hasKey(key);
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (Column column : io.allColumns(key)) {
+            byte[] value = resolve(key, column.col(), Utils.toBytes(column.value()));
+            if (value != null) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        List<Column> columns = new ArrayList<Column>();
+        for (Column column : io.allColumns(key)) {
+            byte[] value = resolve(key, column.col(), Utils.toBytes(column.value()));
+            if (value != null) {
+                columns.add(new Column(column.col(), ByteBuffer.wrap(value).asReadOnlyBuffer()));
+            }
+        }
+        return columns;
+    }
+
+    /** @return the number of puts that did not need to write their value. */
+    public long dedupedPuts() {
+        return dedupedPuts.get();
+    }
+
+    /** @return the number of columns that hold a particular value. */
+    public long references(byte[] value) throws IOException {
+        String refKey = refKey(Hashing.sha256().hashBytes(value).asBytes());
+        return Utils.asCollection(io.allValues(refKey)).size();
+    }
+
+    // the value a column's hash points at. an overwrite can drop that value between reading the hash and the value,
+    // in which case we follow the column to whatever it points at now.
+    private byte[] resolve(String key, long col, byte[] hash) throws IOException {
+        while (hash != null) {
+            byte[] value = io.get(valueKey(hash), 0L);
+            if (value != null) {
+                return value;
+            }
+            byte[] current = io.get(key, col);
+            if (current != null && Arrays.equals(current, hash)) {
+                // not an overwrite. the value is just not there.
+                return null;
+            }
+            hash = current;
+        }
+        return null;
+    }
+
+    // make (key, col) a reference to a value, writing the value if it is not already stored.
+    private void retain(byte[] hash, String key, long col, byte[] value) throws IOException {
+        String valueKey = valueKey(hash);
+        Lock lock = valueLocks.get(valueKey);
+        lock.lock();
+        try {
+            if (mightHaveSeen(hash) && io.hasKey(valueKey)) {
+                dedupedPuts.incrementAndGet();
+            } else {
+                io.put(valueKey, 0L, value);
+                markSeen(hash);
+            }
+            io.put(refKey(hash), refCol(key, col), key.getBytes(Charsets.UTF_8));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // (key, col) no longer points at a value. the value goes when nothing else does.
+    private void release(byte[] hash, String key, long col) throws IOException {
+        String valueKey = valueKey(hash);
+        String refKey = refKey(hash);
+        Lock lock = valueLocks.get(valueKey);
+        lock.lock();
+        try {
+            io.delete(refKey, refCol(key, col));
+            // not hasKey(). some IOs only look at column 0 for that.
+            if (!io.allValues(refKey).iterator().hasNext()) {
+                io.delete(valueKey);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Lock columnLock(String key, long col) {
+        return columnLocks.get(Maps.immutableEntry(key, col));
+    }
+
+    private synchronized boolean mightHaveSeen(byte[] hash) {
+        return seen.mightContain(hash);
+    }
+
+    private synchronized void markSeen(byte[] hash) {
+        seen.put(hash);
+    }
+
+    private static BloomFilter<byte[]> newFilter(long values, double falsePositives) {
+        return BloomFilter.create(Funnels.byteArrayFunnel(), (int)Math.min(Integer.MAX_VALUE, values), falsePositives);
+    }
+
+    private static String valueKey(byte[] hash) {
+        return String.format("%s/%s", VALUE_PREFIX, HashCode.fromBytes(hash));
+    }
+
+    private static String refKey(byte[] hash) {
+        return String.format("%s/%s", REF_PREFIX, HashCode.fromBytes(hash));
+    }
+
+    // a wide hash keeps references from stepping on each other.
+    private static long refCol(String key, long col) {
+        return Hashing.murmur3_128().newHasher().putString(key, Charsets.UTF_8).putLong(col).hash().asLong();
+    }
+}
@@ -53,13 +53,17 @@ public interface IO {
     /** return true if there are any values for a particular key. */
     public boolean hasKey(String key) throws IOException;
     
-    // be careful using this. you only want to use it on rows you know are not very long.
-    // it is not intended for long rows.
-
     /**
      * iterate all values in a particular row in no particular order. You will not normally do this for a data [file]
      * row. Instead this is mainly used for collect meta information (file lengths, etc.) that are stored in IO 
-     * instances.
+     * instances. Implementations should stream values as they are iterated rather than reading the whole row up 
+     * front; the row holding file names can get very long.
      */
     public Iterable<byte[]> allValues(String key) throws IOException;
+
+    /**
+     * iterate all (column, value) pairs in a particular row in no particular order. Same caveats as allValues(), but
+     * the values are not copied.
+     */
+    public Iterable<Column> allColumns(String key) throws IOException;
 }
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * An IO that can fetch any set of columns from a row in one round trip. BatchingIO uses this to turn reads from many
+ * threads into one request per row.
+ *
+ * Use Utils.getColumns() to talk to an IO that may or may not implement this interface.
+ */
+public interface MultiGetIO extends IO {
+
+    /** @return the columns that exist out of the ones asked for, in no particular order. */
+    public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException;
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * An IO that can write a bunch of columns to one row in fewer round trips than one per column. CachingIO flushes
+ * through this, so writing out a segment costs a handful of requests per row.
+ *
+ * Use Utils.putColumns() to talk to an IO that may or may not implement this interface.
+ */
+public interface MultiPutIO extends IO {
+
+    /** write every column to a row. there is no promise that the columns are written all or nothing. */
+    public void putColumns(String key, Collection<Column> columns) throws IOException;
+}
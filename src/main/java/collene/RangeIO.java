@@ -0,0 +1,30 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package collene;
+
+import java.io.IOException;
+
+/**
+ * An IO that can fetch a run of contiguous columns in one round trip. Sequential readers (merges, read-ahead) use this
+ * to avoid paying the latency of the store once per column.
+ *
+ * Use Utils.getRange() to talk to an IO that may or may not implement this interface.
+ */
+public interface RangeIO extends IO {
+    
+    /** @return the columns from fromCol (inclusive) to toCol (exclusive), in order. missing columns are skipped. */
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException;
+}
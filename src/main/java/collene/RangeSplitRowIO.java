@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Splits rows into buckets of contiguous columns: with 1024 columns per bucket, columns 0-1023 of a key go to 
+ * key#0, 1024-2047 go to key#1 and so on. Like SplitRowIO, this keeps partitions from growing without bound, but a
+ * run of columns stays in one partition, so range reads (merges, read-ahead) are a single slice of one partition 
+ * instead of one read per column.
+ *
+ * Columns can be anywhere (RowMeta spreads its columns over the whole range of longs), so the buckets a key uses are
+ * recorded in an index row (key#index). Bucket numbers this instance has already recorded are remembered, so that 
+ * costs one extra write per bucket rather than per column. (This assumes keys are not deleted behind its back.)
+ */
+public class RangeSplitRowIO implements BufferIO, RangeIO, MultiGetIO, MultiPutIO {
+    public static final int DEFAULT_MAX_CACHED_KEYS = 10000;
+    
+    private final IO io;
+    private final long bucketCols;
+    private final String delimiter;
+    
+    // key -> buckets known to be in the index row.
+    private final Cache<String, Set<Long>> indexed = CacheBuilder.newBuilder().maximumSize(DEFAULT_MAX_CACHED_KEYS).build();
+    
+    public RangeSplitRowIO(int bucketCols, String delimiter, IO io) {
+        this.io = io;
+        this.bucketCols = bucketCols;
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public void put(String key, long col, byte[] value) throws IOException {
+        io.put(bucketKey(key, index(key, col)), col, value);
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        Utils.putBuffer(io, bucketKey(key, index(key, col)), col, value);
+    }
+
+    @Override
+    public void putColumns(String key, Collection<Column> columns) throws IOException {
+        Map<Long, List<Column>> byBucket = new HashMap<Long, List<Column>>();
+        for (Column column : columns) {
+            long bucket = index(key, column.col());
+            List<Column> inBucket = byBucket.get(bucket);
+            if (inBucket == null) {
+                inBucket = new ArrayList<Column>();
+                byBucket.put(bucket, inBucket);
+            }
+            inBucket.add(column);
+        }
+        for (Map.Entry<Long, List<Column>> entry : byBucket.entrySet()) {
+            Utils.putColumns(io, bucketKey(key, entry.getKey()), entry.getValue());
+        }
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        return io.get(bucketKey(key, bucket(col)), col);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        return Utils.getBuffer(io, bucketKey(key, bucket(col)), col);
+    }
+
+    @Override
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+        List<Iterable<Column>> ranges = new ArrayList<Iterable<Column>>();
+        long from = fromCol;
+        while (from < toCol) {
+            long bucket = bucket(from);
+            long next = bucketStart(bucket + 1);
+            long to = next > from ? Math.min(toCol, next) : toCol;
+            ranges.add(Utils.getRange(io, bucketKey(key, bucket), from, to));
+            from = to;
+        }
+        return Iterables.concat(ranges);
+    }
+
+    @Override
+    public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException {
+        Map<Long, List<Long>> byBucket = new HashMap<Long, List<Long>>();
+        for (long col : cols) {
+            List<Long> inBucket = byBucket.get(bucket(col));
+            if (inBucket == null) {
+                inBucket = new ArrayList<Long>();
+                byBucket.put(bucket(col), inBucket);
+            }
+            inBucket.add(col);
+        }
+        List<Iterable<Column>> columns = new ArrayList<Iterable<Column>>();
+        for (Map.Entry<Long, List<Long>> entry : byBucket.entrySet()) {
+            columns.add(Utils.getColumns(io, bucketKey(key, entry.getKey()), entry.getValue()));
+        }
+        return Iterables.concat(columns);
+    }
+
+    @Override
+    public int getColSize() {
+        return io.getColSize();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        // forget first, so a put that lands after the index row is gone records its bucket again. and again after,
+        // for a put that came in while this was deleting.
+        indexed.invalidate(key);
+        for (long bucket : buckets(key)) {
+            io.delete(bucketKey(key, bucket));
+        }
+        io.delete(indexKey(key));
+        indexed.invalidate(key);
+    }
+
+    @Override
+    public void delete(String key, long col) throws IOException {
+        // the bucket stays in the index. reading an empty bucket is harmless.
+        io.delete(bucketKey(key, bucket(col)), col);
+    }
+
+    @Override
+    public boolean hasKey(String key) throws IOException {
+        for (long bucket : buckets(key)) {
+            if (io.hasKey(bucketKey(key, bucket))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        List<Iterable<byte[]>> bucketValues = new ArrayList<Iterable<byte[]>>();
+        for (long bucket : buckets(key)) {
+            bucketValues.add(io.allValues(bucketKey(key, bucket)));
+        }
+        // lazy. each bucket is only read when iteration reaches it.
+        return Iterables.concat(bucketValues);
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        List<Iterable<Column>> bucketColumns = new ArrayList<Iterable<Column>>();
+        for (long bucket : buckets(key)) {
+            bucketColumns.add(io.allColumns(bucketKey(key, bucket)));
+        }
+        return Iterables.concat(bucketColumns);
+    }
+    
+    // the bucket a column goes in, which is recorded in the index first if need be.
+    private long index(String key, long col) throws IOException {
+        long bucket = bucket(col);
+        Set<Long> buckets;
+        try {
+            buckets = indexed.get(key, new Callable<Set<Long>>() {
+                @Override
+                public Set<Long> call() throws Exception {
+                    return Sets.newConcurrentHashSet();
+                }
+            });
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+        if (!buckets.contains(bucket)) {
+            io.put(indexKey(key), bucket, Utils.longToBytes(bucket));
+            buckets.add(bucket);
+        }
+        return bucket;
+    }
+    
+    // the buckets recorded for a key.
+    private List<Long> buckets(String key) throws IOException {
+        List<Long> buckets = new ArrayList<Long>();
+        for (Column column : io.allColumns(indexKey(key))) {
+            buckets.add(column.col());
+        }
+        return buckets;
+    }
+    
+    // rounds down, negative columns included.
+    private long bucket(long col) {
+        return col >= 0 ? col / bucketCols : (col + 1) / bucketCols - 1;
+    }
+    
+    private long bucketStart(long bucket) {
+        return bucket * bucketCols;
+    }
+    
+    private String bucketKey(String key, long bucket) {
+        return String.format("%s%s%d", key, delimiter, bucket);
+    }
+    
+    private String indexKey(String key) {
+        return String.format("%s%sindex", key, delimiter);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package collene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads ahead of a sequential reader. A miss fetches the next few columns in one go (one round trip when the
+ * underlying IO is a RangeIO) and keeps them until the next miss replaces them. Only one window is kept, so memory use
+ * stays flat no matter how much gets read. That makes it a good fit for merges, which read whole files once.
+ *
+ * Writes go straight through.
+ */
+public class ReadAheadIO implements BufferIO {
+    private final IO io;
+    private final int columns;
+    
+    // the current window. replaced as a unit, so clones reading on other threads always see a consistent one.
+    private volatile Window window = null;
+    
+    /**
+     * @param io where to read from.
+     * @param columns how many columns to fetch on a miss.
+     */
+    public ReadAheadIO(IO io, int columns) {
+        this.io = io;
+        this.columns = Math.max(1, columns);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        Window current = window;
+        if (current == null || !current.covers(key, col)) {
+            current = new Window(key, col, col + columns);
+            for (Column column : Utils.getRange(io, key, col, col + columns)) {
+                current.values.put(column.col(), column.value());
+            }
+            window = current;
+        }
+        return current.values.get(col);
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        ByteBuffer value = getBuffer(key, col);
+        return value == null ? null : Utils.toBytes(value);
+    }
+
+    @Override
+    public void put(String key, long col, byte[] value) throws IOException {
+        window = null;
+        io.put(key, col, value);
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        window = null;
+        Utils.putBuffer(io, key, col, value);
+    }
+
+    @Override
+    public int getColSize() {
+        return io.getColSize();
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        return io.allValues(key);
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        return io.allColumns(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        window = null;
+        io.delete(key);
+    }
+
+    @Override
+    public void delete(String key, long col) throws IOException {
+        window = null;
+        io.delete(key, col);
+    }
+
+    @Override
+    public boolean hasKey(String key) throws IOException {
+        return io.hasKey(key);
+    }
+    
+    private static class Window {
+        private final String key;
+        private final long fromCol;
+        private final long toCol;
+        private final Map<Long, ByteBuffer> values = new HashMap<Long, ByteBuffer>();
+        
+        private Window(String key, long fromCol, long toCol) {
+            this.key = key;
+            this.fromCol = fromCol;
+            this.toCol = toCol;
+        }
+        
+        private boolean covers(String key, long col) {
+            return col >= fromCol && col < toCol && this.key.equals(key);
+        }
+    }
+}
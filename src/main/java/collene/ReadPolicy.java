@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package collene;
+
+/**
+ * How ColDirectory reads a file. Picked from the IOContext an input is opened with, unless it has been overridden for
+ * the file's extension (see ColDirectory.withReadPolicy()).
+ */
+public enum ReadPolicy {
+    /** read through the shared cache (or a cache private to the input when there is no shared cache). */
+    CACHED,
+    
+    /** read without caching anything. columns already in the shared cache are still used. good for files read once. */
+    UNCACHED,
+    
+    /** read straight from the store, fetching several columns per round trip. good for long sequential reads. */
+    READ_AHEAD
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package collene;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.SegmentInfos;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a replica of a ColDirectory (in another data center, on a local IO, etc.) up to date with the latest commit.
+ * Lucene files never change once written, so a file the replica already has with the right length is skipped and only
+ * new files get copied. Columns are copied by several tasks at once, and the commit point (segments_N) is installed 
+ * last so that a reader of the replica never sees a commit before all of its files are there.
+ * 
+ * Progress is recorded in the replica's meta data once batches of columns have landed and been synced. If a 
+ * replication gets interrupted, the next one skips whatever was already copied.
+ * 
+ * The source commit needs to stick around while it is being replicated. If the source is being written to, snapshot
+ * it and replicate from the snapshot (see ColDirectory.openSnapshot()).
+ */
+public class Replicator {
+    public static final int DEFAULT_THREADS = 4;
+    
+    private final ColDirectory source;
+    private final ColDirectory target;
+    
+    private int threads = DEFAULT_THREADS;
+    
+    // permits are bytes. null means as fast as possible.
+    private RateLimiter limiter = null;
+    
+    // when set, files in the replica that are not part of the replicated commit get deleted.
+    private boolean deleteObsolete = false;
+    
+    public Replicator(ColDirectory source, ColDirectory target) {
+        this.source = source;
+        this.target = target;
+    }
+    
+    /** set the number of tasks copying columns at once. */
+    public Replicator withThreads(int threads) {
+        this.threads = Math.max(1, threads);
+        return this;
+    }
+    
+    /** keep the transfer rate under a number of bytes per second. zero or less means no limit. */
+    public Replicator withMaxBytesPerSecond(long bytesPerSecond) {
+        limiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+        return this;
+    }
+    
+    /** 
+     * Delete files in the replica that the new commit does not use. Leave this off if readers of the replica may 
+     * still be using an older commit.
+     */
+    public Replicator withDeleteObsolete(boolean b) {
+        deleteObsolete = b;
+        return this;
+    }
+    
+    /**
+     * Bring the replica up to the latest commit of the source.
+     * @return the number of bytes copied.
+     */
+    public long replicate() throws IOException {
+        SegmentInfos infos = new SegmentInfos();
+        infos.read(source);
+        String segmentsFile = infos.getSegmentsFileName();
+        Collection<String> files = infos.files(source, true);
+        Set<String> existing = new HashSet<String>(Arrays.asList(target.listAll()));
+        
+        AtomicLong copied = new AtomicLong(0);
+        if (!existing.contains(segmentsFile)) {
+            // everything but the commit point.
+            Map<String, Long> lengths = new HashMap<String, Long>();
+            List<Callable<Void>> work = new ArrayList<Callable<Void>>();
+            SetMultimap<String, Long> finished = Multimaps.synchronizedSetMultimap(HashMultimap.<String, Long>create());
+            for (String file : files) {
+                long length = source.meta().getLength(file);
+                if (file.equals(segmentsFile) || (existing.contains(file) && target.fileLength(file) == length)) {
+                    continue;
+                }
+                lengths.put(file, length);
+                addCopies(work, file, length, source.colSize(file), copied, finished);
+            }
+            copyAll(work, lengths.keySet(), finished);
+            for (String file : lengths.keySet()) {
+                target.copyMeta(source, file, file, false);
+            }
+            target.meta().flush(true);
+            for (String file : lengths.keySet()) {
+                target.meta().clearCopied(file);
+            }
+            
+            // now the commit point.
+            long length = source.meta().getLength(segmentsFile);
+            int colSize = source.colSize(segmentsFile);
+            work.clear();
+            finished.clear();
+            addCopies(work, segmentsFile, length, colSize, copied, finished);
+            copyAll(work, Collections.singleton(segmentsFile), finished);
+            target.copyMeta(source, segmentsFile, segmentsFile, true);
+            target.meta().clearCopied(segmentsFile);
+        }
+        
+        if (deleteObsolete) {
+            for (String file : existing) {
+                if (!files.contains(file) && !file.equals(IndexWriter.WRITE_LOCK_NAME)) {
+                    target.deleteFile(file);
+                }
+            }
+        }
+        return copied.get();
+    }
+    
+    // run the copies, then make sure the data is durable before recording any of it as copied. batches that finished 
+    // before a failure still get recorded.
+    private void copyAll(List<Callable<Void>> work, Collection<String> files, SetMultimap<String, Long> finished) throws IOException {
+        IOException failure = null;
+        try {
+            ColDirectory.runAll(work, threads);
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        target.sync(files);
+        RowMeta progress = target.meta();
+        synchronized (finished) {
+            for (Map.Entry<String, Long> batch : finished.entries()) {
+                progress.markCopied(batch.getKey(), batch.getValue());
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+    
+    // add the batches of a file that have not been copied yet.
+    private void addCopies(List<Callable<Void>> work, final String file, final long length, final int colSize, final AtomicLong copied, final SetMultimap<String, Long> finished) throws IOException {
+        final IO from = source.indexIO();
+        final IO to = target.indexIO();
+        RowMeta progress = target.meta();
+        final long cols = (length + colSize - 1) / colSize;
+        Set<Long> done = progress.copied(file);
+        for (long batch = 0; batch < ColDirectory.copyBatches(length, colSize); batch++) {
+            if (done.contains(batch)) {
+                continue;
+            }
+            final long b = batch;
+            work.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    long expected = ColDirectory.copyBatchBytes(length, colSize, b);
+                    if (limiter != null && expected > 0) {
+                        limiter.acquire((int)expected);
+                    }
+                    copied.addAndGet(ColDirectory.copyBatch(from, file, to, file, b, cols));
+                    finished.put(file, b);
+                    return null;
+                }
+            });
+        }
+    }
+}
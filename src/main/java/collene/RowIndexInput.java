@@ -17,6 +17,7 @@
 package collene;
 
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
 
 import java.io.IOError;
 import java.io.IOException;
@@ -75,8 +76,8 @@ public class RowIndexInput extends IndexInput {
      */
     @Override
     public IndexInput slice(String sliceDescription, final long offset, final long length) throws IOException {
-        if (offset < 0 || length < 0 || offset+length > this.length()) {
-          throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset + ",length=" + length + ",fileLength="  + this.length() + ": "  + this);
+        if (offset < 0 || length < 0 || offset + length > this.length()) {
+          throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset + ",length=" + length + ",fileLength=" + this.length() + ": " + this);
         }
         
         return new RowIndexInput(key, io, pointer + offset) {
@@ -87,6 +88,40 @@ public class RowIndexInput extends IndexInput {
         };
     }
 
+    /**
+     * positional reads go straight to the row reader instead of seeking and reading through a slice one byte at a 
+     * time. doc values and packed ints read this way.
+     */
+    @Override
+    public RandomAccessInput randomAccessSlice(final long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > this.length()) {
+            throw new IllegalArgumentException("randomAccessSlice() out of bounds: offset=" + offset + ",length=" + length + ",fileLength=" + this.length() + ": " + this);
+        }
+        
+        final long base = this.offset + offset;
+        return new RandomAccessInput() {
+            @Override
+            public byte readByte(long pos) throws IOException {
+                return io.getByte(base + pos);
+            }
+
+            @Override
+            public short readShort(long pos) throws IOException {
+                return io.getShort(base + pos);
+            }
+
+            @Override
+            public int readInt(long pos) throws IOException {
+                return io.getInt(base + pos);
+            }
+
+            @Override
+            public long readLong(long pos) throws IOException {
+                return io.getLong(base + pos);
+            }
+        };
+    }
+
     /** @inheritDoc */
     @Override
     public byte readByte() throws IOException {
@@ -98,11 +133,7 @@ public class RowIndexInput extends IndexInput {
     /** @inheritDoc */
     @Override
     public void readBytes(byte[] b, int offset, int len) throws IOException {
-        byte[] buf = io.getBytes(this.offset + pointer, len);
-        assert buf.length == len;
-        
-        // todo: copy alert.
-        System.arraycopy(buf, 0, b, offset, len);
+        io.readBytes(this.offset + pointer, b, offset, len);
         pointer += len;
     }
 }
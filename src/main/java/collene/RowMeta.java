@@ -17,28 +17,48 @@
 package collene;
 
 import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Striped;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.CharsetDecoder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 /**
- * Holds on to file meta information (currently just the length), flushing it when told.
+ * Holds on to file meta information (the length, column size and the data of small files), flushing it when told.
  * 
  * How this works.
- * 1. every file gets its own row. offset 0 holds the length incoded as a 8-byte long.
+ * 1. every file gets its own row. offset 0 holds the length incoded as a 8-byte long. Files that were not written 
+ *    with the column size of the IO follow that with their column size as a 4-byte int. (Plain 8-byte values are 
+ *    still read as using the IO's column size.) Small files (see RowWriter) follow that with their data, so that 
+ *    reading one takes a single trip to the store.
  * 2. every file gets a column in the row keyed by KEY_LIST_KEY. This makes it easy to get a list of all the files.
  *    (I realize the performance implications of this). It's one reason you may wish to use a SplitRowIO for your
- *    RowMeta instance.
+ *    RowMeta instance. The value is a 0 byte, the 8-byte length and then the row key, so listing files also gets 
+ *    their lengths. Values that are just the row key (no leading 0) are still understood, but versions that only 
+ *    wrote those cannot read the new ones. This does not depend on the inline threshold.
+ * 3. every change to the set of files (or their lengths) bumps a generation counter stored in its own row. Listing 
+ *    files reads the counter first and only scans the KEY_LIST_KEY row if it has moved. This keeps near-real-time
+ *    reopens from rescanning the whole list every time.
+ * 4. Lucene deletes files all the time, and each one leaves a column tombstone in the KEY_LIST_KEY row that every
+ *    listing has to scan past. So the list lives in a row per epoch (KEY_LIST_KEY/epoch; epoch 0 is plain 
+ *    KEY_LIST_KEY). Once an epoch has collected enough deletes, the live columns are copied into the next epoch's row
+ *    and the old row goes away with a single row delete, tombstones and all. The epoch and the number of deletes in
+ *    it are kept in the KEY_LIST_EPOCH_KEY row.
  */
 public class RowMeta {
     private static final long ROW_LENGTH_COL = 0;
+    private static final long EPOCH_COL = 0;
+    private static final long EPOCH_TOMBSTONES_COL = 1;
     
     // every row gets prefixed with this string.
     public static final String ROW_PREFIX = "__COLLENE_META_ROW_PREFIX__";
@@ -46,6 +66,24 @@ public class RowMeta {
     // special row key used to store all keys. todo: obvious consistency problems. I think we mostly get around this in
     // lucene by knowing that a particular Directory instnace only operates on a subset of the keys.
     public static final String KEY_LIST_KEY = "__COLLENE_KEY_LIST_KEY__";
+    
+    // special row key used to store the epoch of the key list (column 0) and how many files have been deleted from it
+    // (column 1).
+    public static final String KEY_LIST_EPOCH_KEY = "__COLLENE_KEY_LIST_EPOCH__";
+    
+    // how many deletes the key list can collect before it is moved to a fresh row.
+    public static final int DEFAULT_MAX_LIST_TOMBSTONES = 1000;
+    
+    // special row key used to store the generation counter.
+    public static final String GENERATION_KEY = "__COLLENE_GENERATION_KEY__";
+    
+    // files being copied in (see Replicator) get a row each. a column is written for every batch of columns that has
+    // landed, so an interrupted copy can pick up where it left off.
+    public static final String PROGRESS_PREFIX = "__COLLENE_PROGRESS__";
+    
+    // snapshots get a row each. every file is a column: an 8-byte length, a 4-byte column size, a 4-byte inline data
+    // length followed by the inline data, then "file\nrow".
+    public static final String SNAPSHOT_PREFIX = "__COLLENE_SNAPSHOT__";
 
     private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>() {
         @Override
@@ -59,45 +97,210 @@ public class RowMeta {
     // avoid lookups by using a cache of file lengths.
     private final Map<String, Long> cache = new HashMap<String, Long>();
     
+    // column sizes of files that do not use the column size of the IO. filled in along with the length cache.
+    private final Map<String, Integer> colSizes = new HashMap<String, Integer>();
+    
+    // the data of files that are stored inline. also filled in along with the length cache.
+    private final Map<String, byte[]> inlines = new HashMap<String, byte[]>();
+    
+    // lengths that came along with the last listing. only used when a file's row has not been read.
+    private Map<String, Long> listedLengths = new HashMap<String, Long>();
+    
     // keep track of "dirty" metadata (mainly when the length of a file is set).
     private final Set<String> dirty = new HashSet<String>();
     
-    // final key used to keep the long list of file names.
+    // key of the epoch 0 list of file names. later epochs tack their number onto it.
     private final String fileNamesListKey;
     
+    // final key used to keep the epoch of the list of file names.
+    private final String epochKey;
+    
+    // the epoch of the list of file names and the deletes written to it, as of the last list write.
+    private long listEpoch = 0;
+    private long listTombstones = 0;
+    private int maxListTombstones = DEFAULT_MAX_LIST_TOMBSTONES;
+    
+    // another instance may roll the list over under us. instances sharing a meta IO in this process take turns.
+    private static final Striped<Lock> listLocks = Striped.lock(16);
+    
+    // bumping the generation is a read and a write. instances sharing a meta IO in this process take turns.
+    private static final Striped<Lock> generationLocks = Striped.lock(16);
+    
+    // final key used to keep the generation counter.
+    private final String generationKey;
+    
+    // the last generation this instance wrote or read. -1 until we look.
+    private long generation = -1;
+    
+    // file names as of listedGeneration. null when there is no usable listing.
+    private Set<String> listed = null;
+    private long listedGeneration = -1;
+    
     /** create */
     public RowMeta(IO io) {
         this.io = io;
         fileNamesListKey = prefix(KEY_LIST_KEY);
+        epochKey = prefix(KEY_LIST_EPOCH_KEY);
+        generationKey = prefix(GENERATION_KEY);
+    }
+    
+    /** move the list of file names to a fresh row after this many deletes. 0 never does. */
+    public synchronized RowMeta withMaxListTombstones(int max) {
+        maxListTombstones = max;
+        return this;
+    }
+    
+    /** @return how many deletes the current list of file names has collected, as far as this instance knows. */
+    public synchronized long listTombstones() throws IOException {
+        Lock lock = listLocks.get(epochKey);
+        lock.lock();
+        try {
+            loadEpoch();
+            return listTombstones;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /** @return the current generation. it changes whenever a file is added, removed or has its length committed. */
+    public long generation() throws IOException {
+        byte[] buf = io.get(generationKey, 0L);
+        return buf == null ? 0 : Utils.bytesToLong(buf);
+    }
+    
+    // record that some files changed. keeps our own listing current if it was current before the change.
+    private synchronized void bumpGeneration(Collection<String> added, String removed) throws IOException {
+        // another instance may have bumped it since we last looked.
+        Lock lock = generationLocks.get(generationKey);
+        lock.lock();
+        try {
+            long stored = generation();
+            boolean listingIsCurrent = listed != null && listedGeneration == stored;
+            generation = Math.max(generation, stored) + 1;
+            io.put(generationKey, 0L, Utils.longToBytes(generation));
+            // listed lengths of these are stale now.
+            listedLengths.keySet().removeAll(added);
+            if (removed != null) {
+                listedLengths.remove(removed);
+            }
+            if (listingIsCurrent) {
+                listed.addAll(added);
+                if (removed != null) {
+                    listed.remove(removed);
+                }
+                listedGeneration = generation;
+            } else {
+                listed = null;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
     
     /** @return the length of a particular file */
     public long getLength(String key) throws IOException {
+        Long listedLength;
         if (cache.containsKey(key)) {
             return cache.get(key);
+        } else if ((listedLength = listedLengthOf(key)) != null) {
+            return listedLength;
+        } else if (load(key)) {
+            return cache.get(key);
         } else {
-            byte[] buf = io.get(prefix(key), ROW_LENGTH_COL);
-            if (buf == null) {
-                throw new NullPointerException("Null bytes for key " + key);
-            }
-            assert buf.length == 8;
-            long length = Utils.bytesToLong(buf);
-            cache.put(key, length);
-            return length;
+            throw new NullPointerException("Null bytes for key " + key);
+        }
+    }
+    
+    /** @return the column size a file was written with, or 0 if it uses the column size of the IO (or is missing). */
+    public int getColSize(String key) throws IOException {
+        if (!cache.containsKey(key)) {
+            load(key);
+        }
+        Integer colSize = colSizes.get(key);
+        return colSize == null ? 0 : colSize;
+    }
+    
+    /** @return the data of a file that is stored inline, or null if it is not (or is missing). */
+    public byte[] getInline(String key) throws IOException {
+        if (!cache.containsKey(key)) {
+            load(key);
+        }
+        return inlines.get(key);
+    }
+    
+    /** 
+     * store the data of a file inline, or not (null). like the column size, this is stored along with the length, so
+     * it should be called before the length is set.
+     */
+    public void setInline(String key, byte[] data) {
+        if (data != null) {
+            inlines.put(key, data);
+        } else {
+            inlines.remove(key);
+        }
+    }
+    
+    private synchronized Long listedLengthOf(String key) {
+        return listedLengths.get(key);
+    }
+    
+    /** 
+     * set the column size of a file. 0 means the column size of the IO. it is stored along with the length, so this 
+     * should be called before the length is set.
+     */
+    public void setColSize(String key, int colSize) {
+        if (colSize > 0) {
+            colSizes.put(key, colSize);
+        } else {
+            colSizes.remove(key);
+        }
+    }
+    
+    // fill in the caches for a file. false if there is no such file.
+    private boolean load(String key) throws IOException {
+        byte[] buf = io.get(prefix(key), ROW_LENGTH_COL);
+        if (buf == null) {
+            return false;
         }
+        ByteBuffer bb = ByteBuffer.wrap(buf);
+        cache.put(key, bb.getLong());
+        setColSize(key, bb.remaining() >= 4 ? bb.getInt() : 0);
+        setInline(key, bb.remaining() > 0 ? Arrays.copyOfRange(buf, bb.position(), buf.length) : null);
+        return true;
+    }
+    
+    // what gets stored in a file's row.
+    private byte[] lengthValue(String key, long length) {
+        Integer colSize = colSizes.get(key);
+        byte[] inline = inlines.get(key);
+        if (colSize == null && inline == null) {
+            return Utils.longToBytes(length);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(12 + (inline == null ? 0 : inline.length));
+        buf.putLong(length).putInt(colSize == null ? 0 : colSize);
+        if (inline != null) {
+            buf.put(inline);
+        }
+        return buf.array();
+    }
+    
+    // what gets stored in the key list.
+    private static byte[] listValue(String prefixedKey, long length) {
+        byte[] name = prefixedKey.getBytes(Charsets.UTF_8);
+        return ByteBuffer.allocate(9 + name.length).put((byte)0).putLong(length).put(name).array();
     }
     
     /** set the length of a file. set commit if you want that data immediately flushed to the backing store */
     public void setLength(String key, long length, boolean commit) throws IOException {
         cache.put(key, length);
         if (commit) {
-            byte[] buf = Utils.longToBytes(length);
-            assert buf.length == 8;
+            byte[] buf = lengthValue(key, length);
             String prefixKey = prefix(key);
             // store the length.
             io.put(prefixKey, ROW_LENGTH_COL, buf);
             // ensure we have a record so we know this file exists.
-            io.put(fileNamesListKey, prefixKey.hashCode(), prefixKey.getBytes(Charsets.UTF_8));
+            putListEntry(prefixKey, length);
+            bumpGeneration(Collections.singleton(key), null);
         } else {
             synchronized (dirty) {
                 dirty.add(key);
@@ -113,16 +316,23 @@ public class RowMeta {
         synchronized (dirty) {
             tempDirty = new HashSet<>(dirty);
         }
+        Set<String> flushed = new HashSet<String>();
         for (String key : tempDirty) {
             Long v = cache.get(key);
             String prefixedKey = prefix(key);
             if (v != null) {
-                io.put(prefix(key), ROW_LENGTH_COL, Utils.longToBytes(v));
-                io.put(fileNamesListKey, prefixedKey.hashCode(), prefixedKey.getBytes(Charsets.UTF_8));
+                io.put(prefix(key), ROW_LENGTH_COL, lengthValue(key, v));
+                putListEntry(prefixedKey, v);
+                flushed.add(key);
             }
         }
+        if (flushed.size() > 0) {
+            bumpGeneration(flushed, null);
+        }
         if (clear) {
             cache.clear();
+            colSizes.clear();
+            inlines.clear();
             synchronized (dirty) {
                 dirty.removeAll(tempDirty);
             }
@@ -133,8 +343,162 @@ public class RowMeta {
     public void delete(String key) throws IOException {
         String prefixedKey = prefix(key);
         io.delete(prefixedKey);
-        io.delete(fileNamesListKey, prefixedKey.hashCode());
-        
+        deleteListEntry(prefixedKey);
+        cache.remove(key);
+        colSizes.remove(key);
+        inlines.remove(key);
+        bumpGeneration(Collections.<String>emptySet(), key);
+    }
+    
+    /**
+     * Move the list of file names into a fresh row and drop the old one, leaving the tombstones of deleted files 
+     * behind. This happens by itself every maxListTombstones deletes. Instances in this process take turns with the
+     * list; like everything else here, it assumes that no other process is writing it at the same time.
+     * @return the number of files carried over.
+     */
+    public synchronized int rollover() throws IOException {
+        Lock lock = listLocks.get(epochKey);
+        lock.lock();
+        try {
+            loadEpoch();
+            return rolloverLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // must hold the list lock, with the epoch freshly loaded.
+    private int rolloverLocked() throws IOException {
+        long epoch = listEpoch;
+        List<Column> live = new ArrayList<Column>();
+        for (Column column : io.allColumns(listKey(epoch))) {
+            live.add(column);
+        }
+        // listings follow the epoch row, so the new row has to be complete before anything points at it.
+        Utils.putColumns(io, listKey(epoch + 1), live);
+        io.put(epochKey, EPOCH_COL, Utils.longToBytes(epoch + 1));
+        io.put(epochKey, EPOCH_TOMBSTONES_COL, Utils.longToBytes(0));
+        io.delete(listKey(epoch));
+        listEpoch = epoch + 1;
+        listTombstones = 0;
+        return live.size();
+    }
+    
+    private synchronized void putListEntry(String prefixedKey, long length) throws IOException {
+        Lock lock = listLocks.get(epochKey);
+        lock.lock();
+        try {
+            io.put(listKey(loadEpoch()), prefixedKey.hashCode(), listValue(prefixedKey, length));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private synchronized void deleteListEntry(String prefixedKey) throws IOException {
+        Lock lock = listLocks.get(epochKey);
+        lock.lock();
+        try {
+            io.delete(listKey(loadEpoch()), prefixedKey.hashCode());
+            listTombstones += 1;
+            if (maxListTombstones > 0 && listTombstones >= maxListTombstones) {
+                rolloverLocked();
+            } else {
+                // an overwrite. no tombstone.
+                io.put(epochKey, EPOCH_TOMBSTONES_COL, Utils.longToBytes(listTombstones));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // must hold the list lock. always goes to the IO: a row we remember may have been rolled over and dropped.
+    private long loadEpoch() throws IOException {
+        byte[] tombstones = io.get(epochKey, EPOCH_TOMBSTONES_COL);
+        listEpoch = storedEpoch();
+        listTombstones = tombstones == null ? 0 : Utils.bytesToLong(tombstones);
+        return listEpoch;
+    }
+    
+    private long storedEpoch() throws IOException {
+        byte[] buf = io.get(epochKey, EPOCH_COL);
+        return buf == null ? 0 : Utils.bytesToLong(buf);
+    }
+    
+    // the row holding the list of file names in an epoch.
+    private String listKey(long epoch) {
+        return epoch == 0 ? fileNamesListKey : String.format("%s/%d", fileNamesListKey, epoch);
+    }
+    
+    /** store a snapshot. */
+    public void putSnapshot(Snapshot snapshot) throws IOException {
+        String key = snapshotKey(snapshot.name());
+        long col = 0;
+        for (String file : snapshot.files()) {
+            // inline files have no row.
+            String row = snapshot.row(file) == null ? "" : snapshot.row(file);
+            byte[] entry = String.format("%s\n%s", file, row).getBytes(Charsets.UTF_8);
+            byte[] inline = snapshot.inline(file) == null ? new byte[0] : snapshot.inline(file);
+            ByteBuffer buf = ByteBuffer.allocate(16 + inline.length + entry.length);
+            buf.putLong(snapshot.length(file)).putInt(snapshot.colSize(file)).putInt(inline.length).put(inline).put(entry);
+            io.put(key, col++, buf.array());
+        }
+    }
+    
+    /** @return a snapshot, or null if there is no such thing. */
+    public Snapshot getSnapshot(String name) throws IOException {
+        Map<String, String> rows = new HashMap<String, String>();
+        Map<String, Long> lengths = new HashMap<String, Long>();
+        Map<String, Integer> colSizes = new HashMap<String, Integer>();
+        Map<String, byte[]> inlines = new HashMap<String, byte[]>();
+        for (byte[] value : io.allValues(snapshotKey(name))) {
+            ByteBuffer buf = ByteBuffer.wrap(value);
+            long length = buf.getLong();
+            int colSize = buf.getInt();
+            byte[] inline = new byte[buf.getInt()];
+            buf.get(inline);
+            String[] entry = decoders.get().decode(buf).toString().split("\n", -1);
+            if (!entry[1].isEmpty()) {
+                rows.put(entry[0], entry[1]);
+            }
+            lengths.put(entry[0], length);
+            colSizes.put(entry[0], colSize);
+            if (inline.length > 0) {
+                inlines.put(entry[0], inline);
+            }
+        }
+        return lengths.isEmpty() ? null : new Snapshot(name, rows, lengths, colSizes, inlines);
+    }
+    
+    /** forget a snapshot. */
+    public void deleteSnapshot(String name) throws IOException {
+        io.delete(snapshotKey(name));
+    }
+    
+    /** note that a batch of a file being copied in has landed. */
+    public void markCopied(String key, long batch) throws IOException {
+        io.put(progressKey(key), batch, new byte[]{1});
+    }
+    
+    /** @return the batches of a file that have been copied in so far. */
+    public Set<Long> copied(String key) throws IOException {
+        Set<Long> batches = new HashSet<Long>();
+        for (Column column : io.allColumns(progressKey(key))) {
+            batches.add(column.col());
+        }
+        return batches;
+    }
+    
+    /** forget the progress of a file being copied in. */
+    public void clearCopied(String key) throws IOException {
+        io.delete(progressKey(key));
+    }
+    
+    private static String progressKey(String key) {
+        return String.format("%s/%s", PROGRESS_PREFIX, key);
+    }
+    
+    private static String snapshotKey(String name) {
+        return String.format("%s/%s", SNAPSHOT_PREFIX, name);
     }
     
     private static String prefix(String key) {
@@ -145,16 +509,37 @@ public class RowMeta {
         return prefixedKey.split("/", -1)[1];
     }
     
-    /** @return the file names from the long row of file names */
-    public String[] allKeys() throws IOException {
-        // this could very well have been done with a "select *" type of query (IO has that), but I think this might
-        // perform better.
-        List<String> keys = new ArrayList<String>();
-        for (byte[] bb : io.allValues(fileNamesListKey)) {
-            // todo: need to benchmark the various approaches here in a concurrent environment.
-            //keys.add(unprefix(new String(bb, Charsets.UTF_8)));
-            keys.add(unprefix(decoders.get().decode(ByteBuffer.wrap(bb)).toString()));
+    /** @return the file names from the long row of file names. only rescans when the generation has changed. */
+    public synchronized String[] allKeys() throws IOException {
+        long current = generation();
+        if (listed == null || listedGeneration != current) {
+            // this could very well have been done with a "select *" type of query (IO has that), but I think this 
+            // might perform better.
+            Set<String> keys = new HashSet<String>();
+            Map<String, Long> lengths = new HashMap<String, Long>();
+            long epoch = storedEpoch();
+            for (byte[] bb : io.allValues(listKey(epoch))) {
+                ByteBuffer buf = ByteBuffer.wrap(bb);
+                Long length = null;
+                if (bb.length > 0 && bb[0] == 0) {
+                    buf.get();
+                    length = buf.getLong();
+                }
+                String key = unprefix(decoders.get().decode(buf).toString());
+                keys.add(key);
+                if (length != null) {
+                    lengths.put(key, length);
+                }
+            }
+            if (storedEpoch() != epoch) {
+                // the list moved while we were reading it, and the row we read may be gone.
+                return allKeys();
+            }
+            listed = keys;
+            listedLengths = lengths;
+            listedGeneration = current;
+            generation = Math.max(generation, current);
         }
-        return keys.toArray(new String[keys.size()]);
+        return listed.toArray(new String[listed.size()]);
     }
 }
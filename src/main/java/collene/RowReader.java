@@ -19,76 +19,166 @@ package collene;
 import collene.cache.CachingIO;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
- * reads a row (file). Handles caching opaquely.
+ * reads a row (file). Handles caching opaquely. Column values are read as buffers, so bytes are copied exactly once: 
+ * from wherever the cache got them into the caller's array.
  */
 public class RowReader {
     private final String key;
     private final IO io;
     private final RowMeta meta;
     
-    public RowReader(String key, IO io, RowMeta meta) {
+    // the column size the file was written with.
+    private final int colSize;
+    
+    // the only column of a file that is stored inline with its meta data. null for everything else.
+    private final ByteBuffer inline;
+    
+    // when the column size is a power of two, columns and offsets are a shift and a mask away. -1 otherwise.
+    private final int colShift;
+    private final long colMask;
+    
+    // the last column read. reads mostly stay in the same column for a while, so this saves a trip through the cache.
+    // (col, value) is replaced as a unit, so clones reading on other threads always see a matching pair.
+    private volatile Column last = null;
+    
+    public RowReader(String key, IO io, RowMeta meta) throws IOException {
+        this(key, io, meta, true);
+    }
+    
+    /**
+     * @param cached when false, columns are read straight from io and nothing but the last column is held on to. 
+     *               Otherwise io gets wrapped in a CachingIO unless it already is one.
+     */
+    public RowReader(String key, IO io, RowMeta meta, boolean cached) throws IOException {
         this.key = key;
-        if (io instanceof CachingIO) {
-            this.io = (CachingIO)io;
+        if (!cached || io instanceof CachingIO) {
+            this.io = io;
         } else {
             this.io = new CachingIO(io);
         }
         this.meta = meta;
+        
+        byte[] inlined = meta.getInline(key);
+        inline = inlined == null ? null : ByteBuffer.wrap(inlined).asReadOnlyBuffer();
+        int fileColSize = meta.getColSize(key);
+        colSize = fileColSize > 0 ? fileColSize : this.io.getColSize();
+        if (Integer.bitCount(colSize) == 1) {
+            colShift = Integer.numberOfTrailingZeros(colSize);
+            colMask = colSize - 1;
+        } else {
+            colShift = -1;
+            colMask = 0;
+        }
     }
     
     /** read a single byte */
     public byte getByte(long pointer) throws IOException {
-        long col = columnFor(pointer);
         int offset = offsetFor(pointer);
-        byte[] buf = io.get(key, col);
-        if (buf == null) {
+        ByteBuffer buf = column(columnFor(pointer));
+        if (buf == null || offset >= buf.remaining()) {
             return 0;
         } else {
-            return buf[offset];
+            return buf.get(buf.position() + offset);
+        }
+    }
+    
+    /** read a big-endian short (the way Lucene's DataInput does) */
+    public short getShort(long pointer) throws IOException {
+        ByteBuffer buf = columnHolding(pointer, 2);
+        if (buf != null) {
+            return buf.getShort(buf.position() + offsetFor(pointer));
+        }
+        return (short)(((getByte(pointer) & 0xff) << 8) | (getByte(pointer + 1) & 0xff));
+    }
+    
+    /** read a big-endian int */
+    public int getInt(long pointer) throws IOException {
+        ByteBuffer buf = columnHolding(pointer, 4);
+        if (buf != null) {
+            return buf.getInt(buf.position() + offsetFor(pointer));
+        }
+        return ((getShort(pointer) & 0xffff) << 16) | (getShort(pointer + 2) & 0xffff);
+    }
+    
+    /** read a big-endian long */
+    public long getLong(long pointer) throws IOException {
+        ByteBuffer buf = columnHolding(pointer, 8);
+        if (buf != null) {
+            return buf.getLong(buf.position() + offsetFor(pointer));
         }
+        return (((long)getInt(pointer)) << 32) | (getInt(pointer + 4) & 0xffffffffL);
+    }
+    
+    // the column value, if it holds all len bytes starting at pointer. null means take the slow road.
+    private ByteBuffer columnHolding(long pointer, int len) throws IOException {
+        int offset = offsetFor(pointer);
+        if (offset + len > colSize) {
+            return null;
+        }
+        ByteBuffer buf = column(columnFor(pointer));
+        if (buf == null || offset + len > buf.remaining() || buf.order() != ByteOrder.BIG_ENDIAN) {
+            return null;
+        }
+        return buf;
     }
     
     // compute the column for a given file offset.
     private long columnFor(long pointer) {
-        return pointer / io.getColSize();
+        return colShift < 0 ? pointer / colSize : pointer >>> colShift;
     }
     
     // compute the sub-offset (within a column) for a given file offset 
     private int offsetFor(long pointer) {
-        return (int)(pointer % io.getColSize());
+        return colShift < 0 ? (int)(pointer % colSize) : (int)(pointer & colMask);
+    }
+    
+    // get a column value, or null if it does not exist.
+    private ByteBuffer column(long col) throws IOException {
+        if (inline != null) {
+            return col == 0 ? inline : null;
+        }
+        Column current = last;
+        if (current != null && current.col() == col) {
+            return current.value();
+        }
+        ByteBuffer value = Utils.getBuffer(io, key, col);
+        if (value != null) {
+            last = new Column(col, value);
+        }
+        return value;
     }
     
     /** read a bunch of bytes */
     public byte[] getBytes(long pointer, int len) throws IOException {
-        Map<Long, byte[]> colCache = new HashMap<Long, byte[]>();
-        
         byte[] buf = new byte[len];
-        byte[] colValue;
-        for (int i = 0; i < len; i++) {
-            
-            // we are going to do a read per byte, but caching makes that cheap.
-            // TODO: a smarter implementation where we copy whole buffers.
-            long column = columnFor(pointer + i);
-            if (colCache.containsKey(column)) {
-                colValue = colCache.get(column);
-            } else {
-                colValue = io.get(key, column);
-                if (colValue != null) {
-                    colCache.put(column, colValue);
-                }
+        readBytes(pointer, buf, 0, len);
+        return buf;
+    }
+    
+    /** read a bunch of bytes directly into dest, one column at a time. missing bytes read as zeros. */
+    public void readBytes(long pointer, byte[] dest, int destOffset, int len) throws IOException {
+        while (len > 0) {
+            int offset = offsetFor(pointer);
+            int count = Math.min(len, colSize - offset);
+            ByteBuffer buf = column(columnFor(pointer));
+            int available = buf == null ? 0 : Math.max(0, Math.min(count, buf.remaining() - offset));
+            if (available > 0) {
+                ByteBuffer src = buf.duplicate();
+                src.position(src.position() + offset);
+                src.get(dest, destOffset, available);
             }
-            
-            if (colValue == null) {
-                buf[i] = 0;
-            } else {
-                buf[i] = colValue[offsetFor(pointer + i)];
+            if (available < count) {
+                Arrays.fill(dest, destOffset + available, destOffset + count, (byte)0);
             }
+            pointer += count;
+            destOffset += count;
+            len -= count;
         }
-        return buf;
     }
     
     /** @returns the meta data (for not just this row). this is bad encapsulation, but terribly handy. */
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.io.Closeable;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodically reclaims underlying rows that a TranslateIO has released. Pair this with
+ * TranslateIO.withDeferredReclaim(true). One sweeper per underlying IO is plenty, since every TranslateIO sharing that
+ * IO also shares its garbage list.
+ */
+public class RowSweeper implements Closeable {
+    private static final AtomicInteger NAMER = new AtomicInteger(0);
+
+    private final TranslateIO io;
+    private final long periodMillis;
+    private final AtomicLong swept = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private volatile Exception lastFailure = null;
+    private Timer timer;
+
+    public RowSweeper(TranslateIO io, long periodMillis) {
+        this.io = io;
+        this.periodMillis = periodMillis;
+    }
+
+    /** start sweeping in the background. */
+    public synchronized RowSweeper start() {
+        if (timer == null) {
+            timer = new Timer(String.format("RowSweeper-%d", NAMER.getAndIncrement()), true);
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        swept.addAndGet(io.sweep());
+                    } catch (Exception ex) {
+                        // the rows will get picked up next time.
+                        failures.incrementAndGet();
+                        lastFailure = ex;
+                    }
+                }
+            }, periodMillis, periodMillis);
+        }
+        return this;
+    }
+
+    /** @return the total number of rows reclaimed by this sweeper. */
+    public long swept() {
+        return swept.get();
+    }
+
+    /** @return the number of sweeps that failed. */
+    public long failures() {
+        return failures.get();
+    }
+
+    /** @return why the most recent failed sweep failed, or null if none has. */
+    public Exception lastFailure() {
+        return lastFailure;
+    }
+
+    /** stop sweeping. */
+    @Override
+    public synchronized void close() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
@@ -20,19 +20,70 @@ import collene.cache.CachingIO;
 
 import java.io.IOError;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
+/**
+ * writes a row (file). Columns are filled in memory and only handed off once the writer moves past them (or flushes),
+ * trimmed to the bytes that were written. The last column of a file is never padded out to the full column size, so a
+ * file smaller than a column takes exactly as much room as it needs.
+ * 
+ * Files no bigger than the inline threshold do not get a column at all. Their data is stored with their meta data, so
+ * reading them costs one trip to the store instead of two.
+ */
 public class RowWriter {
+    // the smallest buffer a column starts out with. it grows from there, up to the column size.
+    private static final int MIN_BUFFER = 1024;
+    
     private final String key;
     private final CachingIO io;
     private final RowMeta meta;
+    private final int colSize;
+    
+    // the column size as recorded in the meta data. 0 when it is the column size of the IO.
+    private final int metaColSize;
+    
+    // files up to this size are stored inline.
+    private final int inlineThreshold;
+    
+    // the column being written and how many bytes of it are in use.
+    private long currentCol = -1;
+    private byte[] current = null;
+    private int used = 0;
+    
+    // how much of the row this writer has written. there is nothing worth reading past this.
+    private long written = 0;
     
     public RowWriter(String key, IO io, RowMeta meta) {
+        this(key, io, meta, 0);
+    }
+    
+    /** @param colSize the column size to write this file with. 0 means the column size of the IO. */
+    public RowWriter(String key, IO io, RowMeta meta, int colSize) {
+        this(key, io, meta, colSize, 0);
+    }
+    
+    /** @param inlineThreshold files up to this many bytes are stored with their meta data. 0 turns this off. */
+    public RowWriter(String key, IO io, RowMeta meta, int colSize, int inlineThreshold) {
         this.key = key;
+        this.inlineThreshold = inlineThreshold;
         this.io = new CachingIO(io);
         this.meta = meta;
+        this.colSize = colSize > 0 ? colSize : io.getColSize();
+        this.metaColSize = this.colSize == io.getColSize() ? 0 : this.colSize;
     }
     
     public void flush() throws IOException {
+        if (current != null) {
+            // copies, because we may keep writing to this column.
+            if (inline()) {
+                meta.setInline(key, Arrays.copyOf(current, used));
+                // the length may have been flushed already (meta data is shared), so make sure this goes out too.
+                meta.setLength(key, written, false);
+            } else {
+                io.put(key, currentCol, Arrays.copyOf(current, used));
+            }
+        }
         // since files are never modified, we can remove them from the cache.
         io.flush(true);
         this.meta.flush(true);
@@ -41,41 +92,64 @@ public class RowWriter {
     public void append(long pointer, byte[] buf, int bufOffset, int length) throws IOException {
         //System.out.println(String.format("PUT %s@%d %d bytes: %s", key, pointer, length, bytesToString(buf, bufOffset, length)));
         
-        byte[] colValue = null;
-        long lastCol = -1;
-        boolean mustFinish = false;
-        
-        for (int i = 0; i < length; i++) {
+        long end = pointer + length;
+        while (length > 0) {
+            long col = pointer / colSize;
+            int colOffset = (int)(pointer % colSize);
+            int count = Math.min(length, colSize - colOffset);
             
-            long col = (pointer + i) / io.getColSize();
-            int colOffset = (int)((pointer + i) % io.getColSize());
-            
-            if (col != lastCol) {
-                // we've moved columns.
-                // maybe save the last one.
-                if (colValue != null) {
-                    io.put(key, lastCol, colValue);
-                    mustFinish = false;
-                }
-                
-                // read in the new column.
-                colValue = io.get(key, col);
-                lastCol = col;
-            }
-            
-            if (colValue == null) {
-                colValue = new byte[io.getColSize()];
+            if (col != currentCol) {
+                moveTo(col);
             }
+            ensureCapacity(colOffset + count);
+            System.arraycopy(buf, bufOffset, current, colOffset, count);
+            used = Math.max(used, colOffset + count);
             
-            colValue[colOffset] = buf[bufOffset + i];
-            mustFinish = true;
+            pointer += count;
+            bufOffset += count;
+            length -= count;
         }
         
-        if (mustFinish) {
-            io.put(key, (int)((pointer + length - 1) / io.getColSize()), colValue);
+        written = Math.max(written, end);
+        if (!inline()) {
+            // too big now, if it was ever small enough.
+            meta.setInline(key, null);
         }
+        meta.setColSize(key, metaColSize);
+        meta.setLength(key, written, false);
+    }
+    
+    // small files that fit in the first column are kept with the meta data.
+    private boolean inline() {
+        return written <= inlineThreshold && written <= colSize;
+    }
+    
+    // hand off the current column and start on another one.
+    private void moveTo(long col) throws IOException {
+        if (current != null) {
+            io.putBuffer(key, currentCol, ByteBuffer.wrap(current, 0, used));
+        }
+        currentCol = col;
+        current = null;
+        used = 0;
         
-        meta.setLength(key, pointer + length, false);
+        // only a column we have been through before has anything in it. new columns skip the read.
+        if (col * colSize < written) {
+            byte[] existing = io.get(key, col);
+            if (existing != null) {
+                current = Arrays.copyOf(existing, existing.length);
+                used = existing.length;
+            }
+        }
+    }
+    
+    // make room for len bytes in the current column. short columns get expanded.
+    private void ensureCapacity(int len) {
+        if (current == null) {
+            current = new byte[Math.min(colSize, Math.max(len, MIN_BUFFER))];
+        } else if (current.length < len) {
+            current = Arrays.copyOf(current, Math.min(colSize, Math.max(len, current.length * 2)));
+        }
     }
     
     private static String bytesToString(byte[] buf, int offset, int len) {
@@ -1,42 +1,149 @@
 package collene;
 
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
+/**
+ * Stores translations in an IO, one row per key. Translations are cached locally, which means this class assumes it
+ * is the only thing changing the translations stored in its IO (the same single-writer assumption made elsewhere).
+ */
 public class SimpleTranslate implements Translate {
+    private static final long DEFAULT_CACHE_SIZE = 10000;
+    private static final int LOCK_STRIPES = 64;
+
     private final IO io;
-    
+
+    // translations only change when this instance changes them, so it is safe to keep them around.
+    private final Cache<String, String> cache;
+
+    // guards allocation and modification of translations. keys hashing to the same stripe share a lock.
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
     public SimpleTranslate(IO io) {
+        this(io, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param maxCached maximum number of translations to keep in memory.
+     */
+    public SimpleTranslate(IO io, long maxCached) {
         this.io = io;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxCached).build();
     }
 
     @Override
     public String translate(String key) throws IOException {
-        byte[] bytes = io.get(key, 0L);
-        if (bytes == null) {
-            synchronized (key.intern()) {
-                bytes = io.get(key, 0L);
-                if (bytes == null) {
-                    bytes = Utils.randomString(io.getColSize()).getBytes();
-                    io.put(key, 0L, bytes);
-                }
+        String translation = cache.getIfPresent(key);
+        if (translation != null) {
+            return translation;
+        }
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            return load(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cached translations are resolved locally. The remaining keys are resolved in a single pass that takes all the
+     * locks it needs up front (in stripe order, so concurrent batches cannot deadlock).
+     */
+    @Override
+    public Map<String, String> translate(Collection<String> keys) throws IOException {
+        Map<String, String> translations = new HashMap<String, String>(keys.size());
+        List<String> misses = new ArrayList<String>();
+        for (String key : keys) {
+            String translation = cache.getIfPresent(key);
+            if (translation == null) {
+                misses.add(key);
+            } else {
+                translations.put(key, translation);
             }
         }
-        return new String(bytes);
-        
+        if (misses.isEmpty()) {
+            return translations;
+        }
+
+        List<Lock> missLocks = new ArrayList<Lock>();
+        for (Lock lock : locks.bulkGet(misses)) {
+            // bulkGet hands back one lock per key, so several keys may share a stripe. don't lock it twice.
+            if (!missLocks.contains(lock)) {
+                missLocks.add(lock);
+            }
+        }
+        for (Lock lock : missLocks) {
+            lock.lock();
+        }
+        try {
+            for (String key : misses) {
+                translations.put(key, load(key));
+            }
+        } finally {
+            for (Lock lock : missLocks) {
+                lock.unlock();
+            }
+        }
+        return translations;
+    }
+
+    // lookup (and possibly allocate) a translation. caller must hold the lock for key.
+    private String load(String key) throws IOException {
+        String translation = lookup(key);
+        if (translation == null) {
+            translation = Utils.randomString(io.getColSize());
+            io.put(key, 0L, translation.getBytes());
+        }
+        cache.put(key, translation);
+        return translation;
     }
 
     @Override
-    public void setTranslation(String key, String translation) throws IOException {
-        synchronized (key.intern()) {
+    public String setTranslation(String key, String translation) throws IOException {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            String previous = lookup(key);
             io.put(key, 0L, translation.getBytes());
+            cache.put(key, translation);
+            return previous;
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public void unset(String key) throws IOException {
-        synchronized (key.intern()) {
+    public String unset(String key) throws IOException {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            String previous = lookup(key);
             io.delete(key);
+            cache.invalidate(key);
+            return previous;
+        } finally {
+            lock.unlock();
         }
     }
+
+    // lookup without allocating. caller must hold the lock for key.
+    private String lookup(String key) throws IOException {
+        String translation = cache.getIfPresent(key);
+        if (translation != null) {
+            return translation;
+        }
+        byte[] bytes = io.get(key, 0L);
+        return bytes == null ? null : new String(bytes);
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package collene;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The files of a ColDirectory at a point in time: which underlying row holds each file, how long it is and the column
+ * size it was written with. Small files that live in the meta data have their data copied in here instead. Lucene 
+ * files never change once written, so holding on to the rows (see TranslateIO.retain()) is all it takes to keep a 
+ * snapshot readable for as long as it is around.
+ * 
+ * @see ColDirectory#snapshot(String)
+ */
+public class Snapshot {
+    private final String name;
+    private final Map<String, String> rows;
+    private final Map<String, Long> lengths;
+    private final Map<String, Integer> colSizes;
+    private final Map<String, byte[]> inlines;
+    
+    Snapshot(String name, Map<String, String> rows, Map<String, Long> lengths, Map<String, Integer> colSizes, Map<String, byte[]> inlines) {
+        this.name = name;
+        this.rows = rows;
+        this.lengths = lengths;
+        this.colSizes = colSizes;
+        this.inlines = inlines;
+    }
+    
+    public String name() {
+        return name;
+    }
+    
+    /** @return the names of the files in this snapshot. */
+    public Collection<String> files() {
+        return Collections.unmodifiableSet(lengths.keySet());
+    }
+    
+    /** @return the underlying row holding a file, or null for a file stored inline. */
+    public String row(String file) {
+        return rows.get(file);
+    }
+    
+    /** @return the length of a file. */
+    public long length(String file) {
+        return lengths.get(file);
+    }
+    
+    /** @return the column size of a file. 0 means the column size of the IO. */
+    public int colSize(String file) {
+        Integer colSize = colSizes.get(file);
+        return colSize == null ? 0 : colSize;
+    }
+    
+    /** @return the data of a file stored inline, or null. */
+    public byte[] inline(String file) {
+        return inlines.get(file);
+    }
+    
+    // file names map to rows and nothing changes.
+    Translate translate() {
+        return new Translate() {
+            @Override
+            public String translate(String key) throws IOException {
+                String row = rows.get(key);
+                if (row == null) {
+                    throw new IOException(String.format("%s is not in snapshot %s", key, name));
+                }
+                return row;
+            }
+
+            @Override
+            public Map<String, String> translate(Collection<String> keys) throws IOException {
+                Map<String, String> translations = new HashMap<String, String>();
+                for (String key : keys) {
+                    translations.put(key, translate(key));
+                }
+                return translations;
+            }
+
+            @Override
+            public String setTranslation(String key, String translation) throws IOException {
+                throw new UnsupportedOperationException("Snapshots are read-only");
+            }
+
+            @Override
+            public String unset(String key) throws IOException {
+                throw new UnsupportedOperationException("Snapshots are read-only");
+            }
+        };
+    }
+    
+    // lengths come from the snapshot. nothing is written.
+    RowMeta meta(IO io) {
+        return new RowMeta(io) {
+            @Override
+            public long generation() throws IOException {
+                return 0;
+            }
+
+            @Override
+            public long getLength(String key) throws IOException {
+                Long length = lengths.get(key);
+                if (length == null) {
+                    throw new NullPointerException("Null bytes for key " + key);
+                }
+                return length;
+            }
+
+            @Override
+            public int getColSize(String key) throws IOException {
+                return colSize(key);
+            }
+
+            @Override
+            public byte[] getInline(String key) throws IOException {
+                return inline(key);
+            }
+
+            @Override
+            public void setLength(String key, long length, boolean commit) throws IOException {
+                throw new UnsupportedOperationException("Snapshots are read-only");
+            }
+
+            @Override
+            public void flush(boolean clear) throws IOException {
+                // nothing to flush.
+            }
+
+            @Override
+            public void delete(String key) throws IOException {
+                throw new UnsupportedOperationException("Snapshots are read-only");
+            }
+
+            @Override
+            public synchronized String[] allKeys() throws IOException {
+                return lengths.keySet().toArray(new String[lengths.size()]);
+            }
+        };
+    }
+}
@@ -16,11 +16,14 @@
 
 package collene;
 
+import com.google.common.collect.Iterables;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class SplitRowIO implements IO {
+public class SplitRowIO implements BufferIO {
     private final IO io;
     private final int splits;
     private final String delimiter;
@@ -41,6 +44,16 @@ public class SplitRowIO implements IO {
         return io.get(dbKey(key, col % splits), col);
     }
 
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        return Utils.getBuffer(io, dbKey(key, col % splits), col);
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        Utils.putBuffer(io, dbKey(key, col % splits), col, value);
+    }
+
     @Override
     public int getColSize() {
         return io.getColSize();
@@ -55,14 +68,27 @@ public class SplitRowIO implements IO {
 
     @Override
     public Iterable<byte[]> allValues(String key) throws IOException {
-        List<byte[]> list = new ArrayList<byte[]>();
+        List<Iterable<byte[]>> splitValues = new ArrayList<Iterable<byte[]>>();
+        for (long mod = 0; mod < splits; mod++) {
+            splitValues.add(io.allValues(dbKey(key, mod)));
+            if (mod != 0) {
+                splitValues.add(io.allValues(dbKey(key, -mod)));
+            }
+        }
+        // lazy. each split is only read when iteration reaches it.
+        return Iterables.concat(splitValues);
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        List<Iterable<Column>> splitColumns = new ArrayList<Iterable<Column>>();
         for (long mod = 0; mod < splits; mod++) {
-            list.addAll(Utils.asCollection(io.allValues(dbKey(key, mod))));
+            splitColumns.add(io.allColumns(dbKey(key, mod)));
             if (mod != 0) {
-                list.addAll(Utils.asCollection(io.allValues(dbKey(key, -mod))));
+                splitColumns.add(io.allColumns(dbKey(key, -mod)));
             }
         }
-        return list;
+        return Iterables.concat(splitColumns);
     }
 
     @Override
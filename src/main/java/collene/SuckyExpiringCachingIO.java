@@ -38,7 +38,7 @@ import com.google.common.collect.Sets;
  * is the case early on. I'm keeping this around for a while, until I come up with something better, but I'm not
  * going to use it.
  * 
- * Can be used in place of CachingIO
+ * Can be used in place of CachingIO, which can now remember nothings too (see CachingIO.withNegativeCache()).
  */
 public class SuckyExpiringCachingIO implements IO {
     private static final byte[] NULL_SENTINAL = new byte[]{0};
@@ -129,6 +129,12 @@ public class SuckyExpiringCachingIO implements IO {
         return io.allValues(key);
     }
 
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        // not cached for the same reason.
+        return io.allColumns(key);
+    }
+
     @Override
     public void delete(String key) throws IOException {
         // purge from the cache.
@@ -1,9 +1,18 @@
 package collene;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 public interface Translate {
     public String translate(String key) throws IOException;
-    public void setTranslation(String key, String translation) throws IOException;
-    public void unset(String key) throws IOException;
+
+    /** translate many keys at once. every key in the collection will have an entry in the returned map. */
+    public Map<String, String> translate(Collection<String> keys) throws IOException;
+
+    /** @return the translation that was replaced, or null if there wasn't one. */
+    public String setTranslation(String key, String translation) throws IOException;
+
+    /** @return the translation that was removed, or null if there wasn't one. */
+    public String unset(String key) throws IOException;
 }
@@ -1,16 +1,63 @@
 package collene;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Adds a layer of indirection between keys and the rows that hold their data. Several keys may be linked to the same
+ * underlying row (see ColDirectory fast copies), so underlying rows are reference counted and only reclaimed once
+ * nothing points at them.
+ *
+ * Reference counts and the list of unreferenced rows are stored in the underlying IO. Every TranslateIO that can link
+ * to a row has to share that IO anyway, so they all see the same counts. A missing count means a row has a single
+ * reference (the key that allocated it), which keeps the common case free of extra writes.
+ */
+public class TranslateIO implements BufferIO, RangeIO, MultiPutIO {
+    // rows holding the number of references to an underlying row beyond the first.
+    public static final String REF_PREFIX = "__COLLENE_REFS__";
+
+    // special row key holding underlying rows that are no longer referenced and are waiting to be swept. rows are 
+    // released into GARBAGE_KEY/epoch (epoch 0 is plain GARBAGE_KEY), so that a swept epoch goes away with one row 
+    // delete instead of leaving a column tombstone behind for every row.
+    public static final String GARBAGE_KEY = "__COLLENE_GARBAGE__";
+
+    // special row key holding the epoch rows are released into (column 0) and the oldest epoch that has not been swept
+    // (column 1).
+    public static final String GARBAGE_EPOCH_KEY = "__COLLENE_GARBAGE_EPOCH__";
+    private static final long EPOCH_COL = 0;
+    private static final long OLDEST_EPOCH_COL = 1;
+
+    // counts are read-modify-write. This keeps them consistent across all instances in a process (which is as far as
+    // the single writer assumption goes anyway).
+    private static final Striped<Lock> refLocks = Striped.lock(64);
 
-public class TranslateIO implements IO {
     private final Translate trans;
     private final IO io;
-    
+
+    // when set, unreferenced rows are left for a sweeper to reclaim in bulk instead of being deleted right away.
+    private boolean deferReclaim = false;
+
     public TranslateIO(Translate trans, IO io) {
         this.trans = trans;
         this.io = io;
     }
 
+    /**
+     * Leave unreferenced rows for sweep() (usually run by a RowSweeper) instead of deleting them inline. This moves
+     * row deletes off of the Lucene delete path.
+     */
+    public TranslateIO withDeferredReclaim(boolean b) {
+        deferReclaim = b;
+        return this;
+    }
+
     @Override
     public void put(String key, long col, byte[] value) throws IOException {
         io.put(trans.translate(key), col, value);
@@ -21,15 +68,38 @@ public class TranslateIO implements IO {
         return io.get(trans.translate(key), col);
     }
 
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        return Utils.getBuffer(io, trans.translate(key), col);
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        Utils.putBuffer(io, trans.translate(key), col, value);
+    }
+
+    @Override
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+        return Utils.getRange(io, trans.translate(key), fromCol, toCol);
+    }
+
+    @Override
+    public void putColumns(String key, Collection<Column> columns) throws IOException {
+        Utils.putColumns(io, trans.translate(key), columns);
+    }
+
     @Override
     public int getColSize() {
         return io.getColSize();
     }
 
+    /** removes the key. the underlying row is only reclaimed if nothing else links to it. */
     @Override
     public void delete(String key) throws IOException {
-        io.delete(trans.translate(key));
-        trans.unset(key);
+        String translation = trans.unset(key);
+        if (translation != null) {
+            release(translation);
+        }
     }
 
     @Override
@@ -46,16 +116,177 @@ public class TranslateIO implements IO {
     public Iterable<byte[]> allValues(String key) throws IOException {
         return io.allValues(trans.translate(key));
     }
-    
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        return io.allColumns(trans.translate(key));
+    }
+
     public String translate(String key) throws IOException {
         return trans.translate(key);
-        
+
+    }
+
+    /** translate a bunch of keys at once. */
+    public Map<String, String> translate(Collection<String> keys) throws IOException {
+        return trans.translate(keys);
     }
-    
+
+    /** point newKey at an existing underlying row. Whatever newKey pointed at before loses a reference. */
     public void link(String newKey, String underlyingKey) throws IOException {
-        trans.setTranslation(newKey, underlyingKey);
+        retain(underlyingKey);
+        String previous = trans.setTranslation(newKey, underlyingKey);
+        if (previous != null) {
+            // if this was a re-link to the same row, this undoes the retain.
+            release(previous);
+        }
+    }
+
+    /** add a reference to an underlying row. A row that was released but not yet swept is taken back. */
+    public void retain(String underlyingKey) throws IOException {
+        Lock lock = refLocks.get(underlyingKey);
+        lock.lock();
+        try {
+            long extra = extraReferences(underlyingKey);
+            if (extra == 0 && unrelease(underlyingKey)) {
+                // nothing else held it, so this is its only reference.
+                return;
+            }
+            io.put(refKey(underlyingKey), 0L, Utils.longToBytes(extra + 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * remove a reference to an underlying row, reclaiming it if that was the last one.
+     * @return true if the row is no longer referenced.
+     */
+    public boolean release(String underlyingKey) throws IOException {
+        Lock lock = refLocks.get(underlyingKey);
+        lock.lock();
+        try {
+            long extra = extraReferences(underlyingKey);
+            if (extra > 1) {
+                io.put(refKey(underlyingKey), 0L, Utils.longToBytes(extra - 1));
+                return false;
+            } else if (extra == 1) {
+                io.delete(refKey(underlyingKey));
+                return false;
+            }
+
+            // that was the last one.
+            if (deferReclaim) {
+                // a sweep may be moving on to the next epoch.
+                Lock garbageLock = refLocks.get(GARBAGE_EPOCH_KEY);
+                garbageLock.lock();
+                try {
+                    io.put(garbageKey(epoch(EPOCH_COL)), garbageCol(underlyingKey), underlyingKey.getBytes(Charsets.UTF_8));
+                } finally {
+                    garbageLock.unlock();
+                }
+            } else {
+                io.delete(underlyingKey);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** @return the number of keys (or snapshots, etc.) referring to an underlying row. */
+    public long references(String underlyingKey) throws IOException {
+        return extraReferences(underlyingKey) + 1;
+    }
+
+    /**
+     * delete every underlying row that has been released but not yet reclaimed.
+     * @return the number of rows reclaimed.
+     */
+    public int sweep() throws IOException {
+        long oldest;
+        long newest;
+        Lock garbageLock = refLocks.get(GARBAGE_EPOCH_KEY);
+        garbageLock.lock();
+        try {
+            oldest = epoch(OLDEST_EPOCH_COL);
+            newest = epoch(EPOCH_COL);
+            if (oldest == newest && !io.allValues(garbageKey(newest)).iterator().hasNext()) {
+                // nothing to do. (moving on would cost a row tombstone for nothing.)
+                return 0;
+            }
+            // anything released from here on goes in the next epoch.
+            io.put(GARBAGE_EPOCH_KEY, EPOCH_COL, Utils.longToBytes(newest + 1));
+        } finally {
+            garbageLock.unlock();
+        }
+
+        int swept = 0;
+        for (long epoch = oldest; epoch <= newest; epoch++) {
+            String garbageKey = garbageKey(epoch);
+            for (byte[] buf : Utils.asCollection(io.allValues(garbageKey))) {
+                String underlyingKey = new String(buf, Charsets.UTF_8);
+                Lock lock = refLocks.get(underlyingKey);
+                lock.lock();
+                try {
+                    // it may have been retained since it was released.
+                    if (io.get(garbageKey, garbageCol(underlyingKey)) != null && extraReferences(underlyingKey) == 0) {
+                        io.delete(underlyingKey);
+                        swept += 1;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            // nothing gets added to a past epoch, so its row can go all at once.
+            io.delete(garbageKey);
+            io.put(GARBAGE_EPOCH_KEY, OLDEST_EPOCH_COL, Utils.longToBytes(epoch + 1));
+        }
+        return swept;
+    }
+
+    // take a row off the garbage list, if it is on it. must hold the row's lock.
+    private boolean unrelease(String underlyingKey) throws IOException {
+        long col = garbageCol(underlyingKey);
+        boolean found = false;
+        for (long epoch = epoch(OLDEST_EPOCH_COL); epoch <= epoch(EPOCH_COL); epoch++) {
+            String garbageKey = garbageKey(epoch);
+            if (io.get(garbageKey, col) != null) {
+                io.delete(garbageKey, col);
+                found = true;
+            }
+        }
+        return found;
     }
-    
+
+    private long epoch(long col) throws IOException {
+        byte[] buf = io.get(GARBAGE_EPOCH_KEY, col);
+        return buf == null ? 0 : Utils.bytesToLong(buf);
+    }
+
+    private static String garbageKey(long epoch) {
+        return epoch == 0 ? GARBAGE_KEY : String.format("%s/%d", GARBAGE_KEY, epoch);
+    }
+
+    private long extraReferences(String underlyingKey) throws IOException {
+        byte[] buf = io.get(refKey(underlyingKey), 0L);
+        return buf == null ? 0 : Utils.bytesToLong(buf);
+    }
+
+    private static String refKey(String underlyingKey) {
+        return String.format("%s/%s", REF_PREFIX, underlyingKey);
+    }
+
+    // a wide hash keeps garbage entries from stepping on each other.
+    private static long garbageCol(String underlyingKey) {
+        return Hashing.murmur3_128().hashString(underlyingKey, Charsets.UTF_8).asLong();
+    }
+
+    /** @return the IO holding the underlying rows. */
+    IO underlying() {
+        return io;
+    }
+
     public static boolean canLink(IO a, IO b) {
         if (!(a instanceof TranslateIO))
             return false;
@@ -16,7 +16,12 @@
 
 package collene;
 
+import org.apache.lucene.index.IndexFileNames;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Random;
@@ -64,6 +69,96 @@ public class Utils {
         return list;
     }
     
+    // copied from org.apache.cassandra.utils.ByteBufferUtil.getArray(ByteBuffer).  
+    /**
+     * Get the bytes out of a buffer, avoiding a copy when the buffer wraps an entire array. You should almost never
+     * use this on a hot path.
+     */
+    public static byte[] toBytes(ByteBuffer buffer) {
+        int length = buffer.remaining();
+
+        if (buffer.hasArray())
+        {
+            int boff = buffer.arrayOffset() + buffer.position();
+            if (boff == 0 && length == buffer.array().length)
+                return buffer.array();
+            else
+                return Arrays.copyOfRange(buffer.array(), boff, boff + length);
+        }
+        // else, DirectByteBuffer.get() is the fastest route
+        byte[] bytes = new byte[length];
+        buffer.duplicate().get(bytes);
+
+        return bytes;
+    }
+    
+    /** read a value as a buffer, avoiding a copy when the IO supports it. */
+    public static ByteBuffer getBuffer(IO io, String key, long col) throws IOException {
+        if (io instanceof BufferIO) {
+            return ((BufferIO) io).getBuffer(key, col);
+        }
+        byte[] value = io.get(key, col);
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+    
+    /** write a buffer, avoiding a copy when the IO supports it. */
+    public static void putBuffer(IO io, String key, long col, ByteBuffer value) throws IOException {
+        if (io instanceof BufferIO) {
+            ((BufferIO) io).putBuffer(key, col, value);
+        } else {
+            io.put(key, col, toBytes(value));
+        }
+    }
+    
+    /** write a bunch of columns to a row, in as few round trips as the IO can manage. */
+    public static void putColumns(IO io, String key, Collection<Column> columns) throws IOException {
+        if (io instanceof MultiPutIO) {
+            ((MultiPutIO) io).putColumns(key, columns);
+            return;
+        }
+        for (Column column : columns) {
+            putBuffer(io, key, column.col(), column.value());
+        }
+    }
+    
+    /** read a run of columns, in one round trip when the IO supports it. missing columns are skipped. */
+    public static Iterable<Column> getRange(IO io, String key, long fromCol, long toCol) throws IOException {
+        if (io instanceof RangeIO) {
+            return ((RangeIO) io).getRange(key, fromCol, toCol);
+        }
+        List<Column> columns = new ArrayList<Column>();
+        for (long col = fromCol; col < toCol; col++) {
+            ByteBuffer value = getBuffer(io, key, col);
+            if (value != null) {
+                columns.add(new Column(col, value));
+            }
+        }
+        return columns;
+    }
+    
+    /** read a set of columns, in one round trip when the IO supports it. missing columns are skipped. */
+    public static Iterable<Column> getColumns(IO io, String key, Collection<Long> cols) throws IOException {
+        if (io instanceof MultiGetIO) {
+            return ((MultiGetIO) io).getColumns(key, cols);
+        }
+        List<Column> columns = new ArrayList<Column>();
+        for (long col : cols) {
+            ByteBuffer value = getBuffer(io, key, col);
+            if (value != null) {
+                columns.add(new Column(col, value));
+            }
+        }
+        return columns;
+    }
+    
+    /** @return the extension (no dot) of a Lucene file name. every segments_N file is just "segments". */
+    public static String fileExtension(String name) {
+        if (name.startsWith(IndexFileNames.SEGMENTS)) {
+            return IndexFileNames.SEGMENTS;
+        }
+        return IndexFileNames.getExtension(name);
+    }
+    
     public static String randomString(int length) {
         char[] ch = new char[length];
         for (int i = 0; i < length; i++) {
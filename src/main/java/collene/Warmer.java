@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import collene.cache.CachingIO;
+import org.apache.lucene.index.IndexFileNames;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Preloads the columns of latency-critical files into a ColDirectory's shared cache, so the first query after opening
+ * (or reopening) an index does not pay for a cold cache. Files are picked by extension in priority order until the
+ * byte budget runs out, and their columns are fetched in parallel.
+ *
+ * Run it with ColDirectory.warm() after opening a reader. Columns that are already cached cost nothing, so it is fine
+ * to run it after every reopen.
+ */
+public class Warmer {
+    public static final long DEFAULT_BYTE_BUDGET = 64L * 1024L * 1024L;
+    public static final int DEFAULT_THREADS = 4;
+
+    // every segments_N file (and segments.gen) is warmed under this name.
+    public static final String SEGMENTS = IndexFileNames.SEGMENTS;
+
+    // how many columns each fetch task takes on.
+    private static final int COLUMNS_PER_TASK = 16;
+
+    // extension -> priority. higher goes first. files with other extensions are not warmed.
+    private final Map<String, Integer> priorities = new HashMap<String, Integer>();
+    private long byteBudget = DEFAULT_BYTE_BUDGET;
+    private int threads = DEFAULT_THREADS;
+
+    /** creates a warmer that favors the files every search touches first. */
+    public Warmer() {
+        priorities.put(SEGMENTS, 100);
+        priorities.put("fnm", 90);
+        priorities.put("tip", 80);
+        priorities.put("nvd", 70);
+        priorities.put("tim", 60);
+
+        // small segments bury everything above inside compound files.
+        priorities.put("cfs", 10);
+    }
+
+    /** set the priority for a file extension (no dot). a priority <= 0 means files are not warmed. */
+    public Warmer withPriority(String extension, int priority) {
+        if (priority > 0) {
+            priorities.put(extension, priority);
+        } else {
+            priorities.remove(extension);
+        }
+        return this;
+    }
+
+    /** set the maximum number of bytes to fetch in one warm up. */
+    public Warmer withByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        return this;
+    }
+
+    /** set the number of fetches to run at once. */
+    public Warmer withThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * warm the files of a directory into a cache.
+     * @return the number of bytes warmed.
+     */
+    long warm(ColDirectory dir, final CachingIO cache) throws IOException {
+        List<String> files = new ArrayList<String>();
+        for (String name : dir.listAll()) {
+            // inline files came along with the listing.
+            if (priority(name) > 0 && dir.meta().getInline(name) == null) {
+                files.add(name);
+            }
+        }
+        Collections.sort(files, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                int diff = priority(b) - priority(a);
+                return diff != 0 ? diff : a.compareTo(b);
+            }
+        });
+
+        // spend the budget. a file that does not fit may still leave room for a smaller one after it.
+        long remaining = byteBudget;
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String name : files) {
+            long length = dir.fileLength(name);
+            int colSize = dir.colSize(name);
+            long allCols = (length + colSize - 1) / colSize;
+            final long cols = remaining >= length ? allCols : remaining / colSize;
+            if (cols == 0) {
+                continue;
+            }
+            remaining -= Math.min(length, cols * colSize);
+            for (long start = 0; start < cols; start += COLUMNS_PER_TASK) {
+                final long first = start;
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (long col = first; col < Math.min(first + COLUMNS_PER_TASK, cols); col++) {
+                            cache.getBuffer(name, col);
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return 0;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return byteBudget - remaining;
+    }
+
+    private int priority(String name) {
+        String ext = Utils.fileExtension(name);
+        Integer priority = ext == null ? null : priorities.get(ext);
+        return priority == null ? 0 : priority;
+    }
+}
@@ -17,16 +17,25 @@
 package collene.cache;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import collene.BufferIO;
+import collene.Column;
 import collene.IO;
+import collene.Utils;
 import com.google.common.base.Supplier;
 import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Maps;
@@ -34,8 +43,30 @@ import com.google.common.collect.Multimaps;
 import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Table;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
-public class CachingIO implements IO {
+/**
+ * Caches column values in memory and holds on to writes until they are flushed. Values are kept as ByteBuffers, so a
+ * buffer handed over by a BufferIO (e.g., straight from the Cassandra driver) is cached as-is and can be read from
+ * without being copied.
+ *
+ * Instances are safe to share between threads. Backend reads happen outside of the lock. Threads that miss on the same
+ * column at the same time (e.g., every search thread after a reopen) share a single backend read.
+ *
+ * Lookups for things that are not there (lock rows, new translations, new files) can be kept local too. See 
+ * withNegativeCache() and withRowFilters(). Both assume that nothing writes to the underlying rows behind this cache's
+ * back without calling invalidate(), which is the same assumption the cached values make.
+ *
+ * The bytes held are counted (cachedBytes()). With a byte budget, going over it runs evictions right away, until the
+ * cache is back under 90% of the budget. The eviction strategy picks first. If it will not free enough (NEVER, or
+ * LAST_GET on data that is all recent), other columns go too, so the budget always holds. Unflushed writes never go.
+ * A strategy that can name its next victim (IncrementalEvictionStrategy, e.g. EvictionStrategies.CLOCK()) is
+ * asked for only as many as it takes, instead of about every cached column.
+ */
+public class CachingIO implements BufferIO {
     // here's the deal. we never cancel the timer. Normally this isn't a problem because they should live as long
     // as the process. During tests this is different. We create a lot of these and they stick around forever.
     // todo: a better fix would be to use soft references to the timer.
@@ -48,7 +79,7 @@ public class CachingIO implements IO {
     private final boolean autoFlush;
     
     private final EvictionStrategy evictionStrategy;
-    private final Table<String, Long, byte[]> cache = HashBasedTable.create();
+    private final Table<String, Long, ByteBuffer> cache = HashBasedTable.create();
     private final SetMultimap<String, Long> needsFlush = Multimaps.newSetMultimap(
             Maps.<String, Collection<Long>>newHashMap(),
             new Supplier<Set<Long>>() {
@@ -60,6 +91,59 @@ public class CachingIO implements IO {
     );
     private final Timer evictTimer = nextTimer();
     
+    // (key, col) pairs known to be missing from the underlying IO, least recently used first.
+    private int maxMissing = 0;
+    private final SetMultimap<String, Long> missingByRow = Multimaps.newSetMultimap(
+            Maps.<String, Collection<Long>>newHashMap(),
+            new Supplier<Set<Long>>() {
+                @Override
+                public Set<Long> get() {
+                    return Sets.newHashSet();
+                }
+            }
+    );
+    private final Map<Map.Entry<String, Long>, Boolean> missing = new LinkedHashMap<Map.Entry<String, Long>, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Map.Entry<String, Long>, Boolean> eldest) {
+            if (size() > maxMissing) {
+                missingByRow.remove(eldest.getKey().getKey(), eldest.getKey().getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    
+    // the columns written to rows that were empty when we started watching them. a column that is not in a row's 
+    // filter is not in the row.
+    private int maxRowFilters = 0;
+    private int expectedRowColumns = 0;
+    private final Map<String, BloomFilter<Long>> rowFilters = new LinkedHashMap<String, BloomFilter<Long>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BloomFilter<Long>> eldest) {
+            return size() > maxRowFilters;
+        }
+    };
+    
+    // bumped whenever rows may have changed behind our back. a miss read across a bump is not remembered.
+    private long invalidations = 0;
+    
+    // lookups answered without going to the underlying IO because the column was known to be missing.
+    private final AtomicLong avoidedMisses = new AtomicLong(0);
+    
+    // backend reads that are under way. anybody else who misses on the same column waits for these.
+    private final Map<Map.Entry<String, Long>, SettableFuture<ByteBuffer>> inFlight = new HashMap<Map.Entry<String, Long>, SettableFuture<ByteBuffer>>();
+    
+    // misses that waited on somebody else's read instead of doing their own.
+    private final AtomicLong sharedMisses = new AtomicLong(0);
+    
+    // lookups answered from the cache, and lookups that were not.
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    
+    // the bytes in cached values, and how many there can be before evictions run. 0 is no limit.
+    private long cachedBytes = 0;
+    private long byteBudget = 0;
+    
     public CachingIO(IO io) {
         this(io, false);
     }
@@ -87,31 +171,216 @@ public class CachingIO implements IO {
         evictTimer.cancel();
     }
 
+    /** 
+     * remember up to this many columns that turned out to be missing, so asking for them again does not go to the 
+     * underlying IO. 0 (the default) turns this off.
+     */
+    public CachingIO withNegativeCache(int maxEntries) {
+        synchronized (cache) {
+            maxMissing = maxEntries;
+            missing.clear();
+            missingByRow.clear();
+        }
+        return this;
+    }
+    
+    /**
+     * keep a bloom filter of the columns in up to maxRows rows that are known to have started out empty (they were 
+     * deleted through this cache, or hasKey() found nothing). Lookups for columns that were never written to such a 
+     * row are answered without going to the underlying IO, however many different columns get asked for. Filters are
+     * sized for expectedColumns each. 0 (the default) turns this off.
+     */
+    public CachingIO withRowFilters(int maxRows, int expectedColumns) {
+        synchronized (cache) {
+            maxRowFilters = maxRows;
+            expectedRowColumns = expectedColumns;
+            rowFilters.clear();
+        }
+        return this;
+    }
+    
+    /**
+     * run evictions as soon as cached values take up more than this many bytes, until they take up 90% of it. what 
+     * gets evicted is up to the eviction strategy. 0 (the default) is no limit.
+     */
+    public CachingIO withByteBudget(long bytes) {
+        synchronized (cache) {
+            byteBudget = bytes;
+            evictOverBudget();
+        }
+        return this;
+    }
+    
+    /** @return the number of bytes in cached values. */
+    public long cachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+    
+    /** @return the number of lookups answered from the cache. */
+    public long hits() {
+        return hits.get();
+    }
+    
+    /** @return the number of lookups that were not in the cache. known misses and shared reads included. */
+    public long misses() {
+        return misses.get();
+    }
+    
+    /** @return the number of lookups that were known to be misses and did not go to the underlying IO. */
+    public long avoidedMisses() {
+        return avoidedMisses.get();
+    }
+    
+    /** @return the number of misses that shared a backend read another thread was already doing. */
+    public long sharedMisses() {
+        return sharedMisses.get();
+    }
+
     @Override
     public void put(String key, long col, byte[] value) throws IOException {
-        needsFlush.put(key, col);
-        cache.put(key, col, value);
-        evictionStrategy.notePut(key, col);
+        putBuffer(key, col, ByteBuffer.wrap(value));
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        synchronized (cache) {
+            needsFlush.put(key, col);
+            cachePut(key, col, value);
+            evictionStrategy.notePut(key, col);
+            if (missingByRow.remove(key, col)) {
+                missing.remove(Maps.immutableEntry(key, col));
+            }
+            BloomFilter<Long> filter = rowFilters.get(key);
+            if (filter != null) {
+                filter.put(col);
+            }
+            evictOverBudget();
+        }
         if (autoFlush) {
             this.flush(false);
         }
     }
 
+    /** returns the cached array when the value was cached from an array. otherwise the value is copied. */
     @Override
     public byte[] get(String key, long col) throws IOException {
-        byte[] value = cache.get(key, col);
-        if (value == null) {
-            value = io.get(key, col);
+        ByteBuffer value = getCached(key, col);
+        return value == null ? null : Utils.toBytes(value);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        ByteBuffer value = getCached(key, col);
+        return value == null ? null : value.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a view of this cache for reads that should not disturb it. Values that are already cached get served 
+     * from here, but misses go to the underlying IO and are not cached. Everything else is the same as this.
+     */
+    public BufferIO passive() {
+        return new PassiveView(this);
+    }
+
+    private ByteBuffer getCached(String key, long col) throws IOException {
+        return getCached(key, col, true);
+    }
+
+    private ByteBuffer getCached(String key, long col, boolean cacheMiss) throws IOException {
+        ByteBuffer value;
+        long seenInvalidations;
+        Map.Entry<String, Long> cell = Maps.immutableEntry(key, col);
+        SettableFuture<ByteBuffer> flight;
+        boolean leader = false;
+        synchronized (cache) {
+            value = cache.get(key, col);
             if (value != null) {
-                cache.put(key, col, value);
+                hits.incrementAndGet();
                 evictionStrategy.noteGet(key, col);
+                return value;
+            }
+            misses.incrementAndGet();
+            if (knownMissing(key, col)) {
+                avoidedMisses.incrementAndGet();
+                return null;
+            }
+            flight = inFlight.get(cell);
+            if (flight == null) {
+                flight = SettableFuture.create();
+                inFlight.put(cell, flight);
+                leader = true;
+            }
+            seenInvalidations = invalidations;
+        }
+        if (!leader) {
+            // somebody else is already reading it. (it does not get cached if they are passive.)
+            sharedMisses.incrementAndGet();
+            return awaitShared(flight);
+        }
+        
+        try {
+            value = Utils.getBuffer(io, key, col);
+            synchronized (cache) {
+                value = fill(key, col, value, cacheMiss, seenInvalidations);
+                land(cell, flight);
+            }
+        } catch (Throwable th) {
+            // errors too. anybody waiting on this read (now or later) would wait forever.
+            synchronized (cache) {
+                land(cell, flight);
+            }
+            flight.setException(th);
+            throw th;
+        }
+        flight.set(value);
+        return value;
+    }
+    
+    // cache what a read found. must hold the lock. returns what is cached, which may be a write that raced the read.
+    private ByteBuffer fill(String key, long col, ByteBuffer value, boolean cacheMiss, long seenInvalidations) {
+        if (value == null && cacheMiss) {
+            // a write may have happened while we were reading.
+            if (invalidations == seenInvalidations && !cache.contains(key, col)) {
+                noteMissing(key, col);
+            }
+        } else if (value != null && cacheMiss) {
+            ByteBuffer current = cache.get(key, col);
+            if (current != null) {
+                // don't clobber a write that happened while we were reading.
+                value = current;
+            } else if (invalidations != seenInvalidations) {
+                // what we read may be what was there before. the caller gets it, the cache does not.
+                return value;
+            } else {
+                cachePut(key, col, value);
             }
-        } else {
             evictionStrategy.noteGet(key, col);
+            evictOverBudget();
         }
         return value;
     }
 
+    // the read is done. must hold the lock.
+    private void land(Map.Entry<String, Long> cell, SettableFuture<ByteBuffer> flight) {
+        // an invalidation may have replaced it with a newer read already.
+        if (inFlight.get(cell) == flight) {
+            inFlight.remove(cell);
+        }
+    }
+    
+    private static ByteBuffer awaitShared(SettableFuture<ByteBuffer> flight) throws IOException {
+        try {
+            return Uninterruptibles.getUninterruptibly(flight);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException)ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
     @Override
     public int getColSize() {
         return io.getColSize();
@@ -123,52 +392,159 @@ public class CachingIO implements IO {
         return io.allValues(key);
     }
 
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        // not cached for the same reason.
+        return io.allColumns(key);
+    }
+
     @Override
     public void delete(String key) throws IOException {
-        // purge from the cache.
-        Map<Long, byte[]> row = cache.row(key);
-        Collection<Long> cols = new ArrayList<Long>(row.keySet());
-        for (long col : cols) {
-            cache.remove(key, col);
-            evictionStrategy.remove(key, col);
-        }
-        needsFlush.removeAll(key);
-        
+        invalidate(key);
+        long seenInvalidations = invalidations();
         io.delete(key);
+        startRowFilter(key, seenInvalidations);
+    }
+
+    /** 
+     * purge a row from the cache, including unflushed writes and anything known to be missing from it. nothing is 
+     * deleted from the underlying IO. 
+     */
+    public void invalidate(String key) {
+        synchronized (cache) {
+            Map<Long, ByteBuffer> row = cache.row(key);
+            Collection<Long> cols = new ArrayList<Long>(row.keySet());
+            for (long col : cols) {
+                cacheRemove(key, col);
+                evictionStrategy.remove(key, col);
+            }
+            needsFlush.removeAll(key);
+            for (long col : missingByRow.removeAll(key)) {
+                missing.remove(Maps.immutableEntry(key, col));
+            }
+            rowFilters.remove(key);
+            invalidations += 1;
+            
+            // reads under way may come back with what was there before. new misses should not wait for them.
+            Iterator<Map.Entry<String, Long>> flights = inFlight.keySet().iterator();
+            while (flights.hasNext()) {
+                if (flights.next().getKey().equals(key)) {
+                    flights.remove();
+                }
+            }
+        }
+    }
+    
+    // is a column known not to be there? must hold the lock.
+    private boolean knownMissing(String key, long col) {
+        if (missingByRow.containsEntry(key, col)) {
+            // touch it so it stays around.
+            missing.get(Maps.immutableEntry(key, col));
+            return true;
+        }
+        BloomFilter<Long> filter = rowFilters.get(key);
+        return filter != null && !filter.mightContain(col);
+    }
+    
+    // must hold the lock.
+    private void noteMissing(String key, long col) {
+        if (maxMissing > 0) {
+            missing.put(Maps.immutableEntry(key, col), Boolean.TRUE);
+            missingByRow.put(key, col);
+        }
+    }
+    
+    private long invalidations() {
+        synchronized (cache) {
+            return invalidations;
+        }
+    }
+    
+    // a row was empty a moment ago. watch what gets written to it, starting with anything written since.
+    private void startRowFilter(String key, long seenInvalidations) {
+        synchronized (cache) {
+            if (maxRowFilters > 0 && invalidations == seenInvalidations) {
+                BloomFilter<Long> filter = BloomFilter.create(Funnels.longFunnel(), expectedRowColumns);
+                for (long col : cache.row(key).keySet()) {
+                    filter.put(col);
+                }
+                rowFilters.put(key, filter);
+            }
+        }
     }
 
     @Override
     public void delete(String key, long col) throws IOException {
-        cache.remove(key, col);
-        evictionStrategy.remove(key, col);
-        if (cache.row(key).size() == 0) {
-            needsFlush.removeAll(key);
+        boolean rowIsEmpty;
+        synchronized (cache) {
+            cacheRemove(key, col);
+            evictionStrategy.remove(key, col);
+            rowIsEmpty = cache.row(key).size() == 0;
+            if (rowIsEmpty) {
+                needsFlush.removeAll(key);
+            }
+        }
+        if (rowIsEmpty) {
+            long seenInvalidations = invalidations();
             io.delete(key);
+            startRowFilter(key, seenInvalidations);
         } else {
             io.delete(key, col);
         }
+        synchronized (cache) {
+            noteMissing(key, col);
+        }
     }
 
     @Override
     public boolean hasKey(String key) throws IOException {
-        if (cache.contains(key, 0L))
+        boolean watch;
+        long seenInvalidations;
+        synchronized (cache) {
+            if (cache.contains(key, 0L)) {
+                return true;
+            }
+            watch = maxRowFilters > 0 && !rowFilters.containsKey(key);
+            seenInvalidations = invalidations;
+        }
+        if (get(key, 0L) != null) {
             return true;
-        else {
-            get(key, 0L);
-            return cache.contains(key, 0L);
+        } else if (watch && !io.hasKey(key)) {
+            // nothing there at all, so every column can be answered from here from now on.
+            startRowFilter(key, seenInvalidations);
         }
+        return false;
     }
     
+    /** 
+     * write out everything that has not been written yet. a row's columns go together, which takes far fewer round 
+     * trips when the underlying IO is a MultiPutIO. 
+     */
     public void flush(boolean emptyCache) throws IOException {
         synchronized (cache) {
             for (String key : needsFlush.keySet()) {
+                List<Column> columns = new ArrayList<Column>();
                 for (long col : needsFlush.get(key)) {
-                    io.put(key, col, cache.get(key, col));
+                    ByteBuffer value = cache.get(key, col);
+                    // deleted since it was written.
+                    if (value != null) {
+                        columns.add(new Column(col, value));
+                    }
                 }
+                Utils.putColumns(io, key, columns);
             }
             needsFlush.clear();
             if (emptyCache) {
+                // the strategy would otherwise keep track of all of it forever.
+                for (Table.Cell<String, Long, ByteBuffer> cell : cache.cellSet()) {
+                    evictionStrategy.remove(cell.getRowKey(), cell.getColumnKey());
+                }
                 cache.clear();
+                cachedBytes = 0;
+                missing.clear();
+                missingByRow.clear();
+                rowFilters.clear();
+                invalidations += 1;
             }
         }
     }
@@ -182,12 +558,23 @@ public class CachingIO implements IO {
     }
     
     private void runEvictions() throws Exception {
+        runEvictions(-1);
+    }
+    
+    // evict whatever the strategy says should go, stopping once no more than targetBytes are cached (-1 never stops).
+    private void runEvictions(long targetBytes) {
         // don't bother if there is no eviction policy.
         if (evictionStrategy == null) {
             return;
         }
         
-        synchronized (evictionStrategy) {
+        // everything else touches the cache and the strategy under this lock too.
+        synchronized (cache) {
+            if (targetBytes >= 0 && evictionStrategy instanceof IncrementalEvictionStrategy) {
+                evictIncrementally((IncrementalEvictionStrategy)evictionStrategy, targetBytes);
+                evictAnything(targetBytes);
+                return;
+            }
             
             // keep track of what to remove here.
             final SetMultimap<String, Long> willRemove = Multimaps.newSetMultimap(
@@ -215,14 +602,136 @@ public class CachingIO implements IO {
             }
             
             // actually remove them now.
-            synchronized (cache) {
-                for (String key : willRemove.keySet()) {
-                    for (long col : willRemove.get(key)) {
-                        cache.remove(key, col);
-                        evictionStrategy.remove(key, col);
+            for (String key : willRemove.keySet()) {
+                for (long col : willRemove.get(key)) {
+                    if (targetBytes >= 0 && cachedBytes <= targetBytes) {
+                        return;
                     }
+                    cacheRemove(key, col);
+                    evictionStrategy.remove(key, col);
                 }
             }
+            if (targetBytes >= 0) {
+                evictAnything(targetBytes);
+            }
+        }
+    }
+    
+    // must hold the lock. the strategy did not free enough, so whatever is clean goes until there is room. without
+    // this, every put and miss would rescan the whole cache while the strategy keeps saying no.
+    private void evictAnything(long targetBytes) {
+        if (cachedBytes <= targetBytes) {
+            return;
+        }
+        List<Table.Cell<String, Long, ByteBuffer>> cells = new ArrayList<Table.Cell<String, Long, ByteBuffer>>(cache.cellSet());
+        for (Table.Cell<String, Long, ByteBuffer> cell : cells) {
+            if (cachedBytes <= targetBytes) {
+                return;
+            }
+            if (needsFlush.containsEntry(cell.getRowKey(), cell.getColumnKey())) {
+                continue;
+            }
+            cacheRemove(cell.getRowKey(), cell.getColumnKey());
+            evictionStrategy.remove(cell.getRowKey(), cell.getColumnKey());
+        }
+    }
+    
+    // must hold the lock. takes one victim at a time until there is room, passing over unflushed writes.
+    private void evictIncrementally(IncrementalEvictionStrategy strategy, long targetBytes) {
+        // if everything left is dirty the hand keeps coming back to it. give up after seeing all of it once.
+        int skipped = 0;
+        while (cachedBytes > targetBytes && skipped <= cache.size()) {
+            Map.Entry<String, Long> victim = strategy.nextVictim();
+            if (victim == null) {
+                return;
+            }
+            if (needsFlush.containsEntry(victim.getKey(), victim.getValue())) {
+                skipped += 1;
+                continue;
+            }
+            cacheRemove(victim.getKey(), victim.getValue());
+            strategy.remove(victim.getKey(), victim.getValue());
+        }
+    }
+    
+    // must hold the lock.
+    private void cachePut(String key, long col, ByteBuffer value) {
+        ByteBuffer previous = cache.put(key, col, value);
+        cachedBytes += value.remaining() - (previous == null ? 0 : previous.remaining());
+    }
+    
+    // must hold the lock.
+    private void cacheRemove(String key, long col) {
+        ByteBuffer previous = cache.remove(key, col);
+        if (previous != null) {
+            cachedBytes -= previous.remaining();
+        }
+    }
+    
+    // must hold the lock.
+    private void evictOverBudget() {
+        if (byteBudget > 0 && cachedBytes > byteBudget) {
+            runEvictions(byteBudget * 9 / 10);
+        }
+    }
+    
+    private static class PassiveView implements BufferIO {
+        private final CachingIO cache;
+        
+        private PassiveView(CachingIO cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public ByteBuffer getBuffer(String key, long col) throws IOException {
+            ByteBuffer value = cache.getCached(key, col, false);
+            return value == null ? null : value.asReadOnlyBuffer();
+        }
+
+        @Override
+        public byte[] get(String key, long col) throws IOException {
+            ByteBuffer value = cache.getCached(key, col, false);
+            return value == null ? null : Utils.toBytes(value);
+        }
+
+        @Override
+        public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+            cache.putBuffer(key, col, value);
+        }
+
+        @Override
+        public void put(String key, long col, byte[] value) throws IOException {
+            cache.put(key, col, value);
+        }
+
+        @Override
+        public int getColSize() {
+            return cache.getColSize();
+        }
+
+        @Override
+        public Iterable<byte[]> allValues(String key) throws IOException {
+            return cache.allValues(key);
+        }
+
+        @Override
+        public Iterable<Column> allColumns(String key) throws IOException {
+            return cache.allColumns(key);
+        }
+
+        @Override
+        public void delete(String key) throws IOException {
+            cache.delete(key);
+        }
+
+        @Override
+        public void delete(String key, long col) throws IOException {
+            cache.delete(key, col);
+        }
+
+        @Override
+        public boolean hasKey(String key) throws IOException {
+            return cache.hasKey(key);
         }
     }
     
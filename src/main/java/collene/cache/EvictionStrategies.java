@@ -2,8 +2,12 @@ package collene.cache;
 
 import collene.time.Clock;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Table;
 
+import java.util.Arrays;
+import java.util.Map;
+
 public class EvictionStrategies {
     
     public static EvictionStrategy ALWAYS = new AlwaysEvict();
@@ -15,6 +19,14 @@ public class EvictionStrategies {
         return new EvictByOldestPut(age, clock);
     }
     
+    /** 
+     * second chance. a column is only evicted if it has not been touched since the hand last went by (or since it was
+     * first cached). Pair it with a byte budget (see CachingIO.withByteBudget()). Each cache needs its own.
+     */
+    public static EvictionStrategy CLOCK() {
+        return new ClockEviction();
+    }
+    
     private static class NeverEvict implements EvictionStrategy {
         @Override
         public void noteGet(String key, long col) {}
@@ -85,4 +97,163 @@ public class EvictionStrategies {
         @Override
         public void noteGet(String key, long col) { }
     }
+    
+    // every tracked column gets a slot in a few parallel arrays, and an open-addressed index finds the slot for a 
+    // (key, col). noting a get or a put is a probe and setting a flag: no boxing, no clock. the hand sweeps the slots,
+    // clearing flags as it goes, and stops at the first column that was not touched since its last pass.
+    private static class ClockEviction implements IncrementalEvictionStrategy {
+        private String[] keys = new String[16];
+        private long[] cols = new long[16];
+        private boolean[] referenced = new boolean[16];
+        
+        // slots that were given up, and how many slots have ever been handed out.
+        private int[] free = new int[16];
+        private int freeCount = 0;
+        private int used = 0;
+        private int size = 0;
+        
+        // slot + 1, or 0 for nothing. never more than half full.
+        private int[] index = new int[32];
+        
+        private int hand = 0;
+
+        @Override
+        public void noteGet(String key, long col) {
+            touch(key, col);
+        }
+
+        @Override
+        public void notePut(String key, long col) {
+            touch(key, col);
+        }
+
+        @Override
+        public void remove(String key, long col) {
+            int pos = position(key, col);
+            if (index[pos] == 0) {
+                return;
+            }
+            int slot = index[pos] - 1;
+            unindex(pos);
+            keys[slot] = null;
+            referenced[slot] = false;
+            if (freeCount == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+            }
+            free[freeCount++] = slot;
+            size -= 1;
+        }
+
+        // a full sweep gives everything a second chance.
+        @Override
+        public boolean shouldEvict(String key, long col) {
+            int pos = position(key, col);
+            if (index[pos] == 0) {
+                return false;
+            }
+            int slot = index[pos] - 1;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public Map.Entry<String, Long> nextVictim() {
+            // two times around is enough to clear every flag and come back to one.
+            for (int steps = 0; size > 0 && steps < 2 * used; steps++) {
+                int slot = hand;
+                hand = (hand + 1) % used;
+                if (keys[slot] == null) {
+                    continue;
+                }
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                    continue;
+                }
+                return Maps.immutableEntry(keys[slot], cols[slot]);
+            }
+            return null;
+        }
+        
+        // new columns start without a second chance, so one pass over cold data does not push out what is in use.
+        private void touch(String key, long col) {
+            int pos = position(key, col);
+            if (index[pos] == 0) {
+                add(key, col);
+            } else {
+                referenced[index[pos] - 1] = true;
+            }
+        }
+        
+        private void add(String key, long col) {
+            if ((size + 1) * 2 > index.length) {
+                reindex(index.length * 2);
+            }
+            int slot;
+            if (freeCount > 0) {
+                slot = free[--freeCount];
+            } else {
+                if (used == keys.length) {
+                    keys = Arrays.copyOf(keys, used * 2);
+                    cols = Arrays.copyOf(cols, used * 2);
+                    referenced = Arrays.copyOf(referenced, used * 2);
+                }
+                slot = used++;
+            }
+            keys[slot] = key;
+            cols[slot] = col;
+            referenced[slot] = false;
+            index[position(key, col)] = slot + 1;
+            size += 1;
+        }
+        
+        // where (key, col) is in the index, or the empty spot where it would go.
+        private int position(String key, long col) {
+            int mask = index.length - 1;
+            int pos = hash(key, col) & mask;
+            while (index[pos] != 0) {
+                int slot = index[pos] - 1;
+                if (cols[slot] == col && keys[slot].equals(key)) {
+                    return pos;
+                }
+                pos = (pos + 1) & mask;
+            }
+            return pos;
+        }
+        
+        // take something out of the index, moving back anything that probed past it.
+        private void unindex(int pos) {
+            int mask = index.length - 1;
+            int hole = pos;
+            index[hole] = 0;
+            for (int next = (hole + 1) & mask; index[next] != 0; next = (next + 1) & mask) {
+                int slot = index[next] - 1;
+                int home = hash(keys[slot], cols[slot]) & mask;
+                boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!stays) {
+                    index[hole] = index[next];
+                    index[next] = 0;
+                    hole = next;
+                }
+            }
+        }
+        
+        private void reindex(int length) {
+            index = new int[length];
+            for (int slot = 0; slot < used; slot++) {
+                if (keys[slot] != null) {
+                    index[position(keys[slot], cols[slot])] = slot + 1;
+                }
+            }
+        }
+        
+        private static int hash(String key, long col) {
+            int h = key.hashCode() * 31 + (int)(col ^ (col >>> 32));
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            return h ^ (h >>> 13);
+        }
+    }
 }
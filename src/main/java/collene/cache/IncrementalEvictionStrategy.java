@@ -0,0 +1,29 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene.cache;
+
+import java.util.Map;
+
+/**
+ * An EvictionStrategy that can name what to evict next. CachingIO uses this to get under its byte budget one victim at
+ * a time, instead of asking about every cached column.
+ */
+public interface IncrementalEvictionStrategy extends EvictionStrategy {
+    
+    /** @return the (key, col) that should go next, or null if nothing should. */
+    public Map.Entry<String, Long> nextVictim();
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads what a TraceWriter wrote, one record at a time.
+ */
+public class TraceReader implements Closeable {
+    private final DataInputStream in;
+    private final List<String> keys = new ArrayList<String>();
+    private long micros = 0;
+    
+    public TraceReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        if (this.in.readInt() != TraceWriter.MAGIC) {
+            throw new IOException("Not a trace");
+        }
+        int version = this.in.readByte();
+        if (version != TraceWriter.VERSION) {
+            throw new IOException("Unknown trace version " + version);
+        }
+    }
+    
+    /** @return the next record, or null at the end of the trace. */
+    public TraceRecord next() throws IOException {
+        int code = in.read();
+        if (code < 0) {
+            return null;
+        }
+        try {
+            TraceRecord.Op op = TraceRecord.Op.fromCode((byte)code);
+            if (op == null) {
+                throw new IOException("Corrupt trace: unknown op " + code);
+            }
+            micros += readVarLong();
+            int id = (int)readVarLong();
+            if (id == keys.size()) {
+                keys.add(in.readUTF());
+            } else if (id > keys.size()) {
+                throw new IOException("Corrupt trace: key " + id + " before key " + keys.size());
+            }
+            long zigzag = readVarLong();
+            long col = (zigzag >>> 1) ^ -(zigzag & 1);
+            int size = (int)(readVarLong() - 1);
+            return new TraceRecord(op, keys.get(id), col, size, micros);
+        } catch (EOFException ex) {
+            // the writer went away in the middle of a record.
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+    
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt trace: varint too long");
+    }
+}
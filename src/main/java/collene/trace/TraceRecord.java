@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene.trace;
+
+/**
+ * One access recorded by a TracingIO.
+ */
+public class TraceRecord {
+    
+    public enum Op {
+        // a column was read. size is -1 if it was not there.
+        GET(1),
+        // a column was written.
+        PUT(2),
+        // a whole row was deleted. col and size mean nothing.
+        DELETE(3),
+        // a column was deleted. size means nothing.
+        DELETE_COL(4),
+        // asked whether a row exists. col and size mean nothing.
+        HAS_KEY(5),
+        // a whole row was read (allValues, allColumns). col means nothing, size is the bytes read.
+        SCAN(6);
+        
+        private final byte code;
+        
+        private Op(int code) {
+            this.code = (byte)code;
+        }
+        
+        byte code() {
+            return code;
+        }
+        
+        // null if there is no such op.
+        static Op fromCode(byte code) {
+            for (Op op : values()) {
+                if (op.code == code) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+    
+    private final Op op;
+    private final String key;
+    private final long col;
+    private final int size;
+    private final long micros;
+    
+    public TraceRecord(Op op, String key, long col, int size, long micros) {
+        this.op = op;
+        this.key = key;
+        this.col = col;
+        this.size = size;
+        this.micros = micros;
+    }
+    
+    public Op op() {
+        return op;
+    }
+    
+    public String key() {
+        return key;
+    }
+    
+    public long col() {
+        return col;
+    }
+    
+    /** @return the number of bytes involved, or -1 for a read that found nothing. */
+    public int size() {
+        return size;
+    }
+    
+    /** @return microseconds since the trace started. */
+    public long micros() {
+        return micros;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s %s %d %d", micros, op, key, col, size);
+    }
+}
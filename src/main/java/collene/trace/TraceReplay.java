@@ -0,0 +1,473 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene.trace;
+
+import collene.BufferIO;
+import collene.Column;
+import collene.RangeIO;
+import collene.ReadAheadIO;
+import collene.cache.CachingIO;
+import collene.cache.EvictionStrategies;
+import collene.cache.EvictionStrategy;
+import collene.time.Clock;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Table;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays a trace against CachingIO set up different ways, to see which one would have done best. Nothing real is read
+ * or written: the backend is a model that only knows how big each column is, and counts the trips made to it. It 
+ * starts out knowing every column the trace reads (so read-ahead finds the columns ahead of it), and follows the 
+ * writes and deletes from there. Simulated latency is a fixed cost per trip plus the time to move the bytes.
+ *
+ * Time-based eviction strategies run on trace time, and evictions run every evictionInterval of it (like the eviction
+ * timer would). A byte budget runs them whenever it is exceeded.
+ *
+ * Record traces for this with ColDirectory.withTracing(), which captures what goes through the shared cache.
+ *
+ * usage: TraceReplay trace-file [budget-mb ...]
+ */
+public class TraceReplay {
+    public static final long DEFAULT_READ_MICROS = 1000;
+    public static final long DEFAULT_WRITE_MICROS = 1000;
+    public static final long DEFAULT_EVICTION_INTERVAL = 10000;
+    
+    /** makes a fresh eviction strategy for each replay. time-based ones should go by the clock they are handed. */
+    public interface Policy {
+        public EvictionStrategy create(Clock clock);
+    }
+    
+    /** one way of setting up a cache. */
+    public static class Candidate {
+        private final String name;
+        private Policy policy = new Policy() {
+            @Override
+            public EvictionStrategy create(Clock clock) {
+                return EvictionStrategies.NEVER;
+            }
+        };
+        private long byteBudget = 0;
+        private int readAhead = 0;
+        
+        public Candidate(String name) {
+            this.name = name;
+        }
+        
+        /** evict with this. the default never evicts. */
+        public Candidate withPolicy(Policy policy) {
+            this.policy = policy;
+            return this;
+        }
+        
+        /** see CachingIO.withByteBudget(). 0 is no limit. */
+        public Candidate withByteBudget(long bytes) {
+            byteBudget = bytes;
+            return this;
+        }
+        
+        /** read this many columns at a time on a miss. 0 reads just the one. */
+        public Candidate withReadAhead(int columns) {
+            readAhead = columns;
+            return this;
+        }
+        
+        public String name() {
+            return name;
+        }
+    }
+    
+    /** what happened in a replay. */
+    public static class Result {
+        private final String name;
+        private final long hits;
+        private final long misses;
+        private final long reads;
+        private final long writes;
+        private final long bytesRead;
+        private final long peakBytes;
+        private final long micros;
+        
+        private Result(String name, long hits, long misses, long reads, long writes, long bytesRead, long peakBytes, long micros) {
+            this.name = name;
+            this.hits = hits;
+            this.misses = misses;
+            this.reads = reads;
+            this.writes = writes;
+            this.bytesRead = bytesRead;
+            this.peakBytes = peakBytes;
+            this.micros = micros;
+        }
+        
+        public String name() {
+            return name;
+        }
+        
+        /** @return lookups answered from the cache over all lookups. */
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+        }
+        
+        public long hits() {
+            return hits;
+        }
+        
+        public long misses() {
+            return misses;
+        }
+        
+        /** @return the number of trips made to read from the backend. */
+        public long backendReads() {
+            return reads;
+        }
+        
+        /** @return the number of trips made to write to the backend. */
+        public long backendWrites() {
+            return writes;
+        }
+        
+        /** @return the bytes read from the backend. */
+        public long bytesRead() {
+            return bytesRead;
+        }
+        
+        /** @return the most bytes the cache held at any one time. */
+        public long peakBytes() {
+            return peakBytes;
+        }
+        
+        /** @return how long the backend trips would have taken, one after the other. */
+        public long simulatedMicros() {
+            return micros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-30s %8.4f %12d %12d %12d %14d %14d", name, hitRatio(), reads, writes, bytesRead, peakBytes, micros / 1000);
+        }
+        
+        public static String header() {
+            return String.format("%-30s %8s %12s %12s %12s %14s %14s", "candidate", "hits", "reads", "writes", "bytes read", "peak bytes", "latency ms");
+        }
+    }
+    
+    private final File trace;
+    private long readMicros = DEFAULT_READ_MICROS;
+    private long writeMicros = DEFAULT_WRITE_MICROS;
+    private long bytesPerSecond = 0;
+    private long evictionInterval = DEFAULT_EVICTION_INTERVAL;
+    
+    public TraceReplay(File trace) {
+        this.trace = trace;
+    }
+    
+    /** charge this much for each trip to the backend. */
+    public TraceReplay withLatency(long readMicros, long writeMicros) {
+        this.readMicros = readMicros;
+        this.writeMicros = writeMicros;
+        return this;
+    }
+    
+    /** charge for moving bytes too. 0 (the default) does not. */
+    public TraceReplay withBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+    
+    /** run evictions (and flush writes) this many milliseconds of trace time apart. 0 never does. */
+    public TraceReplay withEvictionInterval(long millis) {
+        evictionInterval = millis;
+        return this;
+    }
+    
+    /** replay the trace against a cache set up like a candidate says. */
+    public Result replay(Candidate candidate) throws IOException {
+        ReplayClock clock = new ReplayClock();
+        ModelIO model = new ModelIO();
+        preload(model);
+        CachingIO cache = new CachingIO(candidate.readAhead > 0 ? new ReadAheadIO(model, candidate.readAhead) : model, false, candidate.policy.create(clock))
+                .withByteBudget(candidate.byteBudget);
+        long peakBytes = 0;
+        long lastEviction = 0;
+        
+        TraceReader reader = new TraceReader(new FileInputStream(trace));
+        try {
+            TraceRecord record;
+            while ((record = reader.next()) != null) {
+                clock.millis = record.micros() / 1000;
+                if (evictionInterval > 0 && clock.millis - lastEviction >= evictionInterval) {
+                    cache.flush(false);
+                    cache.forceEvictions();
+                    lastEviction = clock.millis;
+                }
+                switch (record.op()) {
+                    case GET:
+                        model.learn(record.key(), record.col(), record.size());
+                        cache.getBuffer(record.key(), record.col());
+                        break;
+                    case PUT:
+                        cache.putBuffer(record.key(), record.col(), model.value(record.size()));
+                        break;
+                    case DELETE:
+                        cache.delete(record.key());
+                        break;
+                    case DELETE_COL:
+                        cache.delete(record.key(), record.col());
+                        break;
+                    case HAS_KEY:
+                        model.learnRow(record.key(), record.size() >= 0);
+                        cache.hasKey(record.key());
+                        break;
+                    case SCAN:
+                        model.scan(record.size());
+                        break;
+                }
+                peakBytes = Math.max(peakBytes, cache.cachedBytes());
+            }
+            cache.flush(false);
+        } finally {
+            reader.close();
+        }
+        
+        long micros = model.reads * readMicros + model.writes * writeMicros;
+        if (bytesPerSecond > 0) {
+            micros += (model.bytesRead + model.bytesWritten) * 1000000L / bytesPerSecond;
+        }
+        return new Result(candidate.name, cache.hits(), cache.misses(), model.reads, model.writes, model.bytesRead, peakBytes, micros);
+    }
+    
+    // the first size the trace saw for every column it read.
+    private void preload(ModelIO model) throws IOException {
+        TraceReader reader = new TraceReader(new FileInputStream(trace));
+        try {
+            TraceRecord record;
+            while ((record = reader.next()) != null) {
+                if (record.op() == TraceRecord.Op.GET && record.size() >= 0 && !model.sizes.contains(record.key(), record.col())) {
+                    model.learn(record.key(), record.col(), record.size());
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+    
+    /** replay the trace against each candidate. */
+    public List<Result> replay(List<Candidate> candidates) throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        for (Candidate candidate : candidates) {
+            results.add(replay(candidate));
+        }
+        return results;
+    }
+    
+    public static void main(String args[]) throws Exception {
+        if (args.length < 1) {
+            System.err.println("usage: TraceReplay trace-file [budget-mb ...]");
+            System.exit(1);
+        }
+        List<Long> budgets = new ArrayList<Long>();
+        for (int i = 1; i < args.length; i++) {
+            budgets.add(Long.parseLong(args[i]) * 1024L * 1024L);
+        }
+        if (budgets.isEmpty()) {
+            budgets.add(0L);
+        }
+        
+        List<Candidate> candidates = new ArrayList<Candidate>();
+        for (long budget : budgets) {
+            for (int readAhead : new int[] {0, 8}) {
+                String suffix = String.format("%s/ra%d", budget == 0 ? "unlimited" : (budget / 1024 / 1024) + "mb", readAhead);
+                // with a budget, the cache just drops clean columns in no particular order when it is full.
+                candidates.add(new Candidate("never/" + suffix).withByteBudget(budget).withReadAhead(readAhead));
+                candidates.add(new Candidate("last-get-60s/" + suffix).withByteBudget(budget).withReadAhead(readAhead).withPolicy(new Policy() {
+                    @Override
+                    public EvictionStrategy create(Clock clock) {
+                        return EvictionStrategies.LAST_GET(60000, clock);
+                    }
+                }));
+                candidates.add(new Candidate("last-put-60s/" + suffix).withByteBudget(budget).withReadAhead(readAhead).withPolicy(new Policy() {
+                    @Override
+                    public EvictionStrategy create(Clock clock) {
+                        return EvictionStrategies.LAST_PUT(60000, clock);
+                    }
+                }));
+                candidates.add(new Candidate("clock/" + suffix).withByteBudget(budget).withReadAhead(readAhead).withPolicy(new Policy() {
+                    @Override
+                    public EvictionStrategy create(Clock clock) {
+                        return EvictionStrategies.CLOCK();
+                    }
+                }));
+            }
+        }
+        
+        PrintStream out = System.out;
+        out.println(Result.header());
+        for (Result result : new TraceReplay(new File(args[0])).replay(candidates)) {
+            out.println(result);
+        }
+    }
+    
+    // trace time.
+    private static class ReplayClock extends Clock {
+        private long millis = 0;
+        
+        @Override
+        public long time() {
+            return millis;
+        }
+    }
+    
+    // knows the size of every column the trace has shown it, and counts trips.
+    private static class ModelIO implements BufferIO, RangeIO {
+        private final Table<String, Long, Integer> sizes = HashBasedTable.create();
+        private final Set<String> rows = new HashSet<String>();
+        private byte[] zeros = new byte[0];
+        private long reads = 0;
+        private long writes = 0;
+        private long bytesRead = 0;
+        private long bytesWritten = 0;
+        
+        // what the trace saw, without counting it as a trip.
+        private void learn(String key, long col, int size) {
+            if (size >= 0) {
+                sizes.put(key, col, size);
+            } else {
+                sizes.remove(key, col);
+            }
+        }
+        
+        private void learnRow(String key, boolean exists) {
+            if (exists) {
+                rows.add(key);
+            } else {
+                rows.remove(key);
+                sizes.row(key).clear();
+            }
+        }
+        
+        // whole rows are never cached.
+        private void scan(int size) {
+            reads += 1;
+            bytesRead += Math.max(0, size);
+        }
+        
+        // a value of some size. the contents do not matter.
+        private ByteBuffer value(int size) {
+            if (zeros.length < size) {
+                zeros = new byte[size];
+            }
+            return ByteBuffer.wrap(zeros, 0, Math.max(0, size)).slice();
+        }
+
+        @Override
+        public ByteBuffer getBuffer(String key, long col) throws IOException {
+            reads += 1;
+            Integer size = sizes.get(key, col);
+            if (size == null) {
+                return null;
+            }
+            bytesRead += size;
+            return value(size);
+        }
+
+        @Override
+        public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+            reads += 1;
+            List<Column> columns = new ArrayList<Column>();
+            for (Map.Entry<Long, Integer> entry : sizes.row(key).entrySet()) {
+                if (entry.getKey() >= fromCol && entry.getKey() < toCol) {
+                    bytesRead += entry.getValue();
+                    columns.add(new Column(entry.getKey(), value(entry.getValue())));
+                }
+            }
+            return columns;
+        }
+
+        @Override
+        public byte[] get(String key, long col) throws IOException {
+            ByteBuffer value = getBuffer(key, col);
+            return value == null ? null : new byte[value.remaining()];
+        }
+
+        @Override
+        public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+            writes += 1;
+            bytesWritten += value.remaining();
+            sizes.put(key, col, value.remaining());
+        }
+
+        @Override
+        public void put(String key, long col, byte[] value) throws IOException {
+            putBuffer(key, col, ByteBuffer.wrap(value));
+        }
+
+        @Override
+        public int getColSize() {
+            return 0;
+        }
+
+        @Override
+        public Iterable<byte[]> allValues(String key) throws IOException {
+            reads += 1;
+            List<byte[]> values = new ArrayList<byte[]>();
+            for (int size : sizes.row(key).values()) {
+                bytesRead += size;
+                values.add(new byte[size]);
+            }
+            return values;
+        }
+
+        @Override
+        public Iterable<Column> allColumns(String key) throws IOException {
+            reads += 1;
+            List<Column> columns = new ArrayList<Column>();
+            for (Map.Entry<Long, Integer> entry : sizes.row(key).entrySet()) {
+                bytesRead += entry.getValue();
+                columns.add(new Column(entry.getKey(), value(entry.getValue())));
+            }
+            return columns;
+        }
+
+        @Override
+        public void delete(String key) throws IOException {
+            writes += 1;
+            sizes.row(key).clear();
+            rows.remove(key);
+        }
+
+        @Override
+        public void delete(String key, long col) throws IOException {
+            writes += 1;
+            sizes.remove(key, col);
+        }
+
+        @Override
+        public boolean hasKey(String key) throws IOException {
+            reads += 1;
+            return rows.contains(key) || !sizes.row(key).isEmpty();
+        }
+    }
+}
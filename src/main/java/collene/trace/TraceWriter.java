@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes trace records to a stream. Safe to share between threads and TracingIOs.
+ *
+ * The format is meant to be small enough to leave on for a while. After a header (MAGIC, then VERSION), each record is
+ * 1. the op code (a byte).
+ * 2. microseconds since the previous record (a varint).
+ * 3. a key number (a varint). The first time a key shows up it gets the next number and is written out after it
+ *    (modified UTF-8, as DataOutput.writeUTF() does it).
+ * 4. the column (a zigzag varint, so small negative columns stay small).
+ * 5. the size plus one (a varint, so a miss is 0).
+ */
+public class TraceWriter implements Closeable, Flushable {
+    public static final int MAGIC = 0x43545243;
+    public static final int VERSION = 1;
+    
+    private final DataOutputStream out;
+    private final Map<String, Integer> keys = new HashMap<String, Integer>();
+    private final long started = System.nanoTime();
+    private long lastMicros = 0;
+    private long records = 0;
+    
+    public TraceWriter(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+    }
+    
+    /** record an access, timestamped now. */
+    public void record(TraceRecord.Op op, String key, long col, int size) throws IOException {
+        record(op, key, col, size, (System.nanoTime() - started) / 1000);
+    }
+    
+    /** record an access at a time of your choosing. times should not go backwards. */
+    public synchronized void record(TraceRecord.Op op, String key, long col, int size, long micros) throws IOException {
+        out.writeByte(op.code());
+        // threads can race between reading the clock and getting here.
+        long now = Math.max(micros, lastMicros);
+        writeVarLong(now - lastMicros);
+        lastMicros = now;
+        Integer id = keys.get(key);
+        if (id == null) {
+            id = keys.size();
+            keys.put(key, id);
+            writeVarLong(id);
+            out.writeUTF(key);
+        } else {
+            writeVarLong(id);
+        }
+        writeVarLong((col << 1) ^ (col >> 63));
+        writeVarLong(size + 1L);
+        records += 1;
+    }
+    
+    /** @return the number of records written. */
+    public synchronized long records() {
+        return records;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+    
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene.trace;
+
+import collene.BufferIO;
+import collene.Column;
+import collene.IO;
+import collene.MultiGetIO;
+import collene.MultiPutIO;
+import collene.RangeIO;
+import collene.Utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records every access to an IO, for replaying later (see TraceReplay). Range reads and multi-gets are recorded as a 
+ * read of each column that came back, since that is what whoever asked for them sees.
+ *
+ * Tracing never gets in the way: if the trace cannot be written, the record is dropped and counted. 
+ */
+public class TracingIO implements BufferIO, RangeIO, MultiGetIO, MultiPutIO {
+    private final IO io;
+    private final TraceWriter writer;
+    private final AtomicLong dropped = new AtomicLong(0);
+    
+    public TracingIO(IO io, TraceWriter writer) {
+        this.io = io;
+        this.writer = writer;
+    }
+    
+    /** @return the number of records that could not be written. */
+    public long dropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void put(String key, long col, byte[] value) throws IOException {
+        io.put(key, col, value);
+        trace(TraceRecord.Op.PUT, key, col, value.length);
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        int size = value.remaining();
+        Utils.putBuffer(io, key, col, value);
+        trace(TraceRecord.Op.PUT, key, col, size);
+    }
+
+    @Override
+    public void putColumns(String key, Collection<Column> columns) throws IOException {
+        Utils.putColumns(io, key, columns);
+        for (Column column : columns) {
+            trace(TraceRecord.Op.PUT, key, column.col(), column.value().remaining());
+        }
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        byte[] value = io.get(key, col);
+        trace(TraceRecord.Op.GET, key, col, value == null ? -1 : value.length);
+        return value;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        ByteBuffer value = Utils.getBuffer(io, key, col);
+        trace(TraceRecord.Op.GET, key, col, value == null ? -1 : value.remaining());
+        return value;
+    }
+
+    @Override
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+        return traced(key, Utils.getRange(io, key, fromCol, toCol));
+    }
+
+    @Override
+    public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException {
+        return traced(key, Utils.getColumns(io, key, cols));
+    }
+
+    @Override
+    public int getColSize() {
+        return io.getColSize();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        io.delete(key);
+        trace(TraceRecord.Op.DELETE, key, 0, 0);
+    }
+
+    @Override
+    public void delete(String key, long col) throws IOException {
+        io.delete(key, col);
+        trace(TraceRecord.Op.DELETE_COL, key, col, 0);
+    }
+
+    @Override
+    public boolean hasKey(String key) throws IOException {
+        boolean hasKey = io.hasKey(key);
+        trace(TraceRecord.Op.HAS_KEY, key, 0, hasKey ? 1 : -1);
+        return hasKey;
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        List<byte[]> values = new ArrayList<byte[]>();
+        long bytes = 0;
+        for (byte[] value : io.allValues(key)) {
+            values.add(value);
+            bytes += value.length;
+        }
+        trace(TraceRecord.Op.SCAN, key, 0, (int)Math.min(Integer.MAX_VALUE, bytes));
+        return values;
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        List<Column> columns = new ArrayList<Column>();
+        long bytes = 0;
+        for (Column column : io.allColumns(key)) {
+            columns.add(column);
+            bytes += column.value().remaining();
+        }
+        trace(TraceRecord.Op.SCAN, key, 0, (int)Math.min(Integer.MAX_VALUE, bytes));
+        return columns;
+    }
+    
+    private Iterable<Column> traced(String key, Iterable<Column> columns) {
+        List<Column> read = new ArrayList<Column>();
+        for (Column column : columns) {
+            read.add(column);
+            trace(TraceRecord.Op.GET, key, column.col(), column.value().remaining());
+        }
+        return read;
+    }
+    
+    private void trace(TraceRecord.Op op, String key, long col, int size) {
+        try {
+            writer.record(op, key, col, size);
+        } catch (IOException ex) {
+            dropped.incrementAndGet();
+        }
+    }
+}
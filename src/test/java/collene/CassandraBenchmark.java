@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.policies.DefaultRetryPolicy;
+import com.datastax.driver.core.policies.LoggingRetryPolicy;
+import org.cassandraunit.CassandraCQLUnit;
+import org.cassandraunit.dataset.cql.ClassPathCQLDataSet;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares CassandraConfig profiles against the embedded Cassandra the tests use (or a real cluster). Each profile 
+ * writes the same rows, then a pool of threads does random single-column reads and range reads, and the latency 
+ * percentiles get printed. Numbers against the embedded server are only good for comparing profiles to each other.
+ * 
+ * usage: CassandraBenchmark [host:port [threads [reads]]]. Without host:port an embedded server is started.
+ */
+public class CassandraBenchmark {
+    private static final int COL_SIZE = 8192;
+    private static final int ROWS = 20;
+    private static final int COLS = 100;
+    private static PrintStream out = System.out;
+    
+    public static void main(String args[]) throws Throwable {
+        String addr = args.length > 0 ? args[0] : null;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int reads = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+        
+        if (addr == null) {
+            new CassandraCQLUnit(new ClassPathCQLDataSet("ddl.cql", "collene"), "/cassandra.yaml", "127.0.0.1", 9042) {{
+                this.before();
+                this.load();
+            }};
+            addr = "127.0.0.1:9042";
+        }
+        
+        Map<String, CassandraConfig> profiles = new LinkedHashMap<String, CassandraConfig>();
+        profiles.put("defaults", new CassandraConfig());
+        profiles.put("token-aware", new CassandraConfig()
+                .withTokenAwareness(null)
+                .withConnections(HostDistance.LOCAL, 4, 8));
+        profiles.put("latency-aware", new CassandraConfig()
+                .withTokenAwareness(null)
+                .withLatencyAwareness(true)
+                .withConnections(HostDistance.LOCAL, 4, 8)
+                .withRetryPolicy(new LoggingRetryPolicy(DefaultRetryPolicy.INSTANCE)));
+        profiles.put("lz4", new CassandraConfig()
+                .withTokenAwareness(null)
+                .withConnections(HostDistance.LOCAL, 4, 8)
+                .withCompression(ProtocolOptions.Compression.LZ4));
+        profiles.put("big-pages", new CassandraConfig()
+                .withTokenAwareness(null)
+                .withFetchSize(5000));
+        profiles.put("quorum", new CassandraConfig()
+                .withTokenAwareness(null)
+                .withReadConsistency(ConsistencyLevel.QUORUM)
+                .withWriteConsistency(ConsistencyLevel.QUORUM));
+        
+        out.println(String.format("%-15s %10s %10s %10s %10s %10s %12s", "profile", "write ms", "p50 us", "p99 us", "p999 us", "max us", "reads/s"));
+        for (Map.Entry<String, CassandraConfig> profile : profiles.entrySet()) {
+            CassandraIO io;
+            try {
+                io = new CassandraIO(NextCassandraPrefix.get(), COL_SIZE, "collene", "cindex").start(addr, profile.getValue());
+            } catch (Exception ex) {
+                // e.g., no lz4 on the class path.
+                out.println(String.format("%-15s skipped: %s", profile.getKey(), ex));
+                continue;
+            }
+            try {
+                run(profile.getKey(), io, threads, reads);
+            } finally {
+                io.close();
+            }
+        }
+        System.exit(0);
+    }
+    
+    private static void run(String name, final CassandraIO io, int threads, int reads) throws Exception {
+        Random rand = new Random(42);
+        byte[] value = new byte[COL_SIZE];
+        long start = System.nanoTime();
+        for (int row = 0; row < ROWS; row++) {
+            for (long col = 0; col < COLS; col++) {
+                rand.nextBytes(value);
+                io.put(Integer.toHexString(row), col, value);
+            }
+        }
+        long writeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        // warm up connections and statements.
+        for (int i = 0; i < 200; i++) {
+            io.get(Integer.toHexString(i % ROWS), i % COLS);
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+        final int readsPerThread = reads / threads;
+        start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            futures.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    Random rand = new Random(seed);
+                    long[] latencies = new long[readsPerThread];
+                    for (int i = 0; i < readsPerThread; i++) {
+                        String key = Integer.toHexString(rand.nextInt(ROWS));
+                        long began = System.nanoTime();
+                        if (i % 10 == 0) {
+                            // every so often, read a run of columns like read-ahead does.
+                            long from = rand.nextInt(COLS - 8);
+                            for (Column column : io.getRange(key, from, from + 8)) {
+                                column.value();
+                            }
+                        } else {
+                            io.getBuffer(key, rand.nextInt(COLS));
+                        }
+                        latencies[i] = System.nanoTime() - began;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+        long[] all = new long[readsPerThread * threads];
+        int n = 0;
+        for (Future<long[]> future : futures) {
+            for (long latency : future.get()) {
+                all[n++] = latency;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        
+        Arrays.sort(all);
+        out.println(String.format("%-15s %10d %10d %10d %10d %10d %12.0f", 
+                name,
+                writeMillis,
+                micros(all, 0.50), 
+                micros(all, 0.99), 
+                micros(all, 0.999), 
+                TimeUnit.NANOSECONDS.toMicros(all[all.length - 1]),
+                all.length / (elapsed / 1000000000d)));
+    }
+    
+    private static long micros(long[] sorted, double percentile) {
+        return TimeUnit.NANOSECONDS.toMicros(sorted[(int)Math.min(sorted.length - 1, sorted.length * percentile)]);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A MemoryIO that keeps count of what was asked of it. Safe to count from several threads. */
+public class CountingIO extends MemoryIO {
+    private final AtomicInteger gets = new AtomicInteger(0);
+    private final AtomicInteger scans = new AtomicInteger(0);
+    private final List<String> deletedRows = new CopyOnWriteArrayList<String>();
+    
+    public CountingIO(int colSize) {
+        super(colSize);
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        gets.incrementAndGet();
+        return super.get(key, col);
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        scans.incrementAndGet();
+        return super.allValues(key);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        deletedRows.add(key);
+        super.delete(key);
+    }
+    
+    /** @return the number of single column reads. */
+    public int gets() {
+        return gets.get();
+    }
+    
+    /** @return the number of allValues() scans. */
+    public int scans() {
+        return scans.get();
+    }
+    
+    /** @return the rows deleted whole, in order. */
+    public List<String> deletedRows() {
+        return deletedRows;
+    }
+}
@@ -16,10 +16,13 @@
 
 package collene;
 
+import com.google.common.base.Function;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Table;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
@@ -35,18 +38,29 @@ public class MemoryIO implements IO {
     private final Table<String, Long, byte[]> data = HashBasedTable.create();
     
     @Override
-    public void put(String key, long col, byte[] value) throws IOException {
+    public synchronized void put(String key, long col, byte[] value) throws IOException {
         data.put(key, col, value);    
     }
 
     @Override
-    public byte[] get(String key, long col) throws IOException {
+    public synchronized byte[] get(String key, long col) throws IOException {
         return data.get(key, col); // what about nulls?
     }
 
     @Override
-    public Iterable<byte[]> allValues(String key) throws IOException {
-        return data.row(key).values();
+    public synchronized Iterable<byte[]> allValues(String key) throws IOException {
+        // copied so callers can iterate while other threads write.
+        return new ArrayList<byte[]>(data.row(key).values());
+    }
+
+    @Override
+    public synchronized Iterable<Column> allColumns(String key) throws IOException {
+        return Iterables.transform(new ArrayList<Map.Entry<Long, byte[]>>(data.row(key).entrySet()), new Function<Map.Entry<Long, byte[]>, Column>() {
+            @Override
+            public Column apply(Map.Entry<Long, byte[]> entry) {
+                return new Column(entry.getKey(), ByteBuffer.wrap(entry.getValue()).asReadOnlyBuffer());
+            }
+        });
     }
 
     @Override
@@ -55,7 +69,7 @@ public class MemoryIO implements IO {
     }
 
     @Override
-    public void delete(String key) throws IOException {
+    public synchronized void delete(String key) throws IOException {
         // todo: is there a more efficient way to do this?
         Map<Long, byte[]> row = data.row(key);
         Collection<Long> cols = new ArrayList<Long>(row.keySet());
@@ -65,12 +79,12 @@ public class MemoryIO implements IO {
     }
 
     @Override
-    public void delete(String key, long col) throws IOException {
+    public synchronized void delete(String key, long col) throws IOException {
         data.remove(key, col);
     }
 
     @Override
-    public boolean hasKey(String key) throws IOException {
+    public synchronized boolean hasKey(String key) throws IOException {
         return data.rowKeySet().contains(key);
     }
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014 Gary Dusbabek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package collene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes an IO (usually a MemoryIO) behave a bit like one across a network, so read-ahead, batching, caching and the
+ * like can be measured without a cluster.
+ *
+ * Every call is one round trip. A trip takes a base latency plus jitter drawn from an exponential distribution (so
+ * there is a tail), plus the time to move its bytes at the configured bandwidth. Now and then a trip is an outlier and
+ * takes extra time on top of that. At most withConcurrency() trips are under way at once; the rest queue. Range reads,
+ * multi-gets and multi-puts are one trip each, which is the point of them.
+ *
+ * Delays come from a seeded Random, so a single-threaded run sees the same delays every time.
+ */
+public class SimulatedRemoteIO implements BufferIO, RangeIO, MultiGetIO, MultiPutIO {
+    private final IO io;
+    private Random rand = new Random(0);
+    private long readMicros = 0;
+    private long readJitterMicros = 0;
+    private long writeMicros = 0;
+    private long writeJitterMicros = 0;
+    private long bytesPerSecond = 0;
+    private double outlierRate = 0;
+    private long outlierMicros = 0;
+    private Semaphore permits = null;
+    
+    private final AtomicLong trips = new AtomicLong(0);
+    private final AtomicLong outliers = new AtomicLong(0);
+    private final AtomicLong delayNanos = new AtomicLong(0);
+    
+    public SimulatedRemoteIO(IO io) {
+        this.io = io;
+    }
+    
+    /** reads take this long, plus exponentially distributed jitter averaging jitterMicros. */
+    public SimulatedRemoteIO withReadLatency(long micros, long jitterMicros) {
+        readMicros = micros;
+        readJitterMicros = jitterMicros;
+        return this;
+    }
+    
+    /** writes and deletes take this long, plus exponentially distributed jitter averaging jitterMicros. */
+    public SimulatedRemoteIO withWriteLatency(long micros, long jitterMicros) {
+        writeMicros = micros;
+        writeJitterMicros = jitterMicros;
+        return this;
+    }
+    
+    /** values move at this many bytes per second, per trip. 0 (the default) is as fast as memory. */
+    public SimulatedRemoteIO withBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+    
+    /** one trip in every 1/probability takes an extra micros (a GC pause, a compaction, a dropped packet). */
+    public SimulatedRemoteIO withOutliers(double probability, long micros) {
+        outlierRate = probability;
+        outlierMicros = micros;
+        return this;
+    }
+    
+    /** allow only this many trips at once, like a connection pool. 0 (the default) is no limit. */
+    public SimulatedRemoteIO withConcurrency(int maxTrips) {
+        permits = maxTrips > 0 ? new Semaphore(maxTrips, true) : null;
+        return this;
+    }
+    
+    /** seed the delays. */
+    public SimulatedRemoteIO withSeed(long seed) {
+        rand = new Random(seed);
+        return this;
+    }
+    
+    /** @return the number of round trips made. */
+    public long trips() {
+        return trips.get();
+    }
+    
+    /** @return the number of trips that were outliers. */
+    public long outliers() {
+        return outliers.get();
+    }
+    
+    /** @return the total time spent in simulated delays, in nanoseconds. queueing for a permit not included. */
+    public long delayNanos() {
+        return delayNanos.get();
+    }
+
+    @Override
+    public void put(String key, long col, byte[] value) throws IOException {
+        long started = begin();
+        try {
+            io.put(key, col, value);
+        } finally {
+            end(true, value.length, started);
+        }
+    }
+
+    @Override
+    public void putBuffer(String key, long col, ByteBuffer value) throws IOException {
+        long started = begin();
+        try {
+            Utils.putBuffer(io, key, col, value);
+        } finally {
+            end(true, value.remaining(), started);
+        }
+    }
+
+    @Override
+    public void putColumns(String key, Collection<Column> columns) throws IOException {
+        long started = begin();
+        long bytes = 0;
+        try {
+            for (Column column : columns) {
+                bytes += column.value().remaining();
+                Utils.putBuffer(io, key, column.col(), column.value());
+            }
+        } finally {
+            end(true, bytes, started);
+        }
+    }
+
+    @Override
+    public byte[] get(String key, long col) throws IOException {
+        long started = begin();
+        byte[] value = null;
+        try {
+            value = io.get(key, col);
+        } finally {
+            end(false, value == null ? 0 : value.length, started);
+        }
+        return value;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key, long col) throws IOException {
+        long started = begin();
+        ByteBuffer value = null;
+        try {
+            value = Utils.getBuffer(io, key, col);
+        } finally {
+            end(false, value == null ? 0 : value.remaining(), started);
+        }
+        return value;
+    }
+
+    @Override
+    public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+        long started = begin();
+        List<Column> columns = new ArrayList<Column>();
+        try {
+            // the underlying IO is local, so per-column reads here cost nothing.
+            for (long col = fromCol; col < toCol; col++) {
+                ByteBuffer value = Utils.getBuffer(io, key, col);
+                if (value != null) {
+                    columns.add(new Column(col, value));
+                }
+            }
+        } finally {
+            end(false, bytes(columns), started);
+        }
+        return columns;
+    }
+
+    @Override
+    public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException {
+        long started = begin();
+        List<Column> columns = new ArrayList<Column>();
+        try {
+            for (Column column : Utils.getColumns(io, key, cols)) {
+                columns.add(column);
+            }
+        } finally {
+            end(false, bytes(columns), started);
+        }
+        return columns;
+    }
+
+    @Override
+    public Iterable<byte[]> allValues(String key) throws IOException {
+        long started = begin();
+        List<byte[]> values = new ArrayList<byte[]>();
+        long bytes = 0;
+        try {
+            for (byte[] value : io.allValues(key)) {
+                values.add(value);
+                bytes += value.length;
+            }
+        } finally {
+            end(false, bytes, started);
+        }
+        return values;
+    }
+
+    @Override
+    public Iterable<Column> allColumns(String key) throws IOException {
+        long started = begin();
+        List<Column> columns = new ArrayList<Column>();
+        try {
+            for (Column column : io.allColumns(key)) {
+                columns.add(column);
+            }
+        } finally {
+            end(false, bytes(columns), started);
+        }
+        return columns;
+    }
+
+    @Override
+    public int getColSize() {
+        return io.getColSize();
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        long started = begin();
+        try {
+            io.delete(key);
+        } finally {
+            end(true, 0, started);
+        }
+    }
+
+    @Override
+    public void delete(String key, long col) throws IOException {
+        long started = begin();
+        try {
+            io.delete(key, col);
+        } finally {
+            end(true, 0, started);
+        }
+    }
+
+    @Override
+    public boolean hasKey(String key) throws IOException {
+        long started = begin();
+        try {
+            return io.hasKey(key);
+        } finally {
+            end(false, 0, started);
+        }
+    }
+    
+    // wait for a permit. @return when the trip started.
+    private long begin() {
+        if (permits != null) {
+            permits.acquireUninterruptibly();
+        }
+        return System.nanoTime();
+    }
+    
+    // wait out whatever is left of the trip, then let somebody else go.
+    private void end(boolean write, long bytes, long started) {
+        try {
+            long delay = delayNanos(write, bytes);
+            trips.incrementAndGet();
+            delayNanos.addAndGet(delay);
+            long deadline = started + delay;
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+    
+    private synchronized long delayNanos(boolean write, long bytes) {
+        long micros = write ? writeMicros : readMicros;
+        long jitter = write ? writeJitterMicros : readJitterMicros;
+        double nanos = TimeUnit.MICROSECONDS.toNanos(micros);
+        if (jitter > 0) {
+            nanos += -Math.log(1d - rand.nextDouble()) * TimeUnit.MICROSECONDS.toNanos(jitter);
+        }
+        if (bytesPerSecond > 0) {
+            nanos += bytes * 1000000000d / bytesPerSecond;
+        }
+        if (outlierRate > 0 && rand.nextDouble() < outlierRate) {
+            outliers.incrementAndGet();
+            nanos += TimeUnit.MICROSECONDS.toNanos(outlierMicros);
+        }
+        return (long)nanos;
+    }
+    
+    private static long bytes(List<Column> columns) {
+        long bytes = 0;
+        for (Column column : columns) {
+            bytes += column.value().remaining();
+        }
+        return bytes;
+    }
+}
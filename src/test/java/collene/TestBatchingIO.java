@@ -0,0 +1,130 @@
+package collene;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestBatchingIO {
+    
+    @Test
+    public void testReadsAreBatched() throws Exception {
+        final AtomicInteger backendReads = new AtomicInteger(0);
+        IO backend = new MultiGetMemoryIO(64, backendReads);
+        for (int row = 0; row < 4; row++) {
+            for (long col = 0; col < 50; col++) {
+                backend.put(Integer.toHexString(row), col, new byte[]{(byte)row, (byte)col});
+            }
+        }
+        
+        // a long window, so that a batch only goes out when it is full.
+        final BatchingIO io = new BatchingIO(backend).withWindow(10000000L).withMaxBatch(100);
+        ExecutorService executor = Executors.newFixedThreadPool(100);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 100; i++) {
+            final int row = i % 4;
+            final long col = i / 2;
+            futures.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return io.get(Integer.toHexString(row), col);
+                }
+            }));
+        }
+        for (int i = 0; i < 100; i++) {
+            Assert.assertArrayEquals(new byte[]{(byte)(i % 4), (byte)(i / 2)}, futures.get(i).get());
+        }
+        executor.shutdown();
+        
+        Assert.assertEquals(1, io.batches());
+        Assert.assertEquals(4, io.requests());
+        Assert.assertEquals(4, backendReads.get());
+    }
+    
+    @Test
+    public void testWindow() throws Exception {
+        BatchingIO io = new BatchingIO(new MemoryIO(64)).withWindow(1000L);
+        io.put("a", 0L, new byte[]{1});
+        
+        // nobody else is reading, so this waits for the window to pass.
+        Assert.assertArrayEquals(new byte[]{1}, io.get("a", 0L));
+        Assert.assertNull(io.get("a", 1L));
+        Assert.assertNull(io.getBuffer("b", 0L));
+        Assert.assertEquals(3, io.batches());
+    }
+    
+    @Test
+    public void testFailuresReachEveryReader() throws Exception {
+        final AtomicInteger backendReads = new AtomicInteger(0);
+        IO backend = new MultiGetMemoryIO(64, backendReads) {
+            @Override
+            public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException {
+                super.getColumns(key, cols);
+                throw new IOException("nope");
+            }
+        };
+        
+        // every read of the row is in the one batch that fails.
+        final BatchingIO io = new BatchingIO(backend).withWindow(10000000L).withMaxBatch(10);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 10; i++) {
+            final long col = i;
+            futures.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return io.get("a", col);
+                }
+            }));
+        }
+        for (Future<byte[]> future : futures) {
+            try {
+                future.get();
+                Assert.fail("should have thrown");
+            } catch (ExecutionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+        executor.shutdown();
+        Assert.assertEquals(1, io.batches());
+        Assert.assertEquals(1, backendReads.get());
+    }
+    
+    private static class MultiGetMemoryIO extends MemoryIO implements MultiGetIO {
+        private final AtomicInteger reads;
+        
+        public MultiGetMemoryIO(int colSize, AtomicInteger reads) {
+            super(colSize);
+            this.reads = reads;
+        }
+
+        @Override
+        public Iterable<Column> getColumns(String key, Collection<Long> cols) throws IOException {
+            reads.incrementAndGet();
+            List<Column> columns = new ArrayList<Column>();
+            for (long col : cols) {
+                byte[] value = super.get(key, col);
+                if (value != null) {
+                    columns.add(new Column(col, ByteBuffer.wrap(value)));
+                }
+            }
+            return columns;
+        }
+
+        @Override
+        public byte[] get(String key, long col) throws IOException {
+            reads.incrementAndGet();
+            return super.get(key, col);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package collene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collection;
+
+public class TestCloning {
+    private static final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_9);
+
+    @Test
+    public void testCloneByLinking() throws Exception {
+        IO dataIO = new MemoryIO(256);
+        IO sourceTranslations = new MemoryIO(32);
+        IO cloneTranslations = new MemoryIO(32);
+        TranslateIO sourceIO = new TranslateIO(new SimpleTranslate(sourceTranslations), dataIO);
+        TranslateIO cloneIO = new TranslateIO(new SimpleTranslate(cloneTranslations), dataIO);
+        ColDirectory source = ColDirectory.open("source", sourceIO, new MemoryIO(256));
+        ColDirectory clone = ColDirectory.open("clone", cloneIO, new MemoryIO(256));
+
+        addDocuments(source, 200);
+        Collection<String> files = clone.cloneFrom(source);
+        Assert.assertFalse(files.isEmpty());
+
+        // rows are shared, not copied. inline files never had one, and don't get one.
+        int inline = 0;
+        for (String file : files) {
+            if (source.meta().getInline(file) != null) {
+                Assert.assertFalse(sourceTranslations.hasKey(file));
+                Assert.assertFalse(cloneTranslations.hasKey(file));
+                inline += 1;
+            } else {
+                Assert.assertEquals(sourceIO.translate(file), cloneIO.translate(file));
+                Assert.assertEquals(2, sourceIO.references(sourceIO.translate(file)));
+            }
+            Assert.assertEquals(source.fileLength(file), clone.fileLength(file));
+        }
+        Assert.assertTrue(inline > 0);
+        Assert.assertEquals(200, count(clone));
+
+        // the two go their own ways after that.
+        addDocuments(clone, 100);
+        Assert.assertEquals(300, count(clone));
+        Assert.assertEquals(200, count(source));
+    }
+
+    @Test
+    public void testCloneByCopying() throws Exception {
+        // column sizes go along with the files.
+        ColDirectory source = ColDirectory.open("source", new MemoryIO(256), new MemoryIO(256)).withColumnSize("cfs", 4096);
+        ColDirectory clone = ColDirectory.open("clone", new MemoryIO(128), new MemoryIO(256)).withCopyThreads(3);
+
+        addDocuments(source, 200);
+        long generation = clone.generation();
+        Collection<String> files = clone.cloneFrom(source);
+
+        // lengths were committed in one go.
+        Assert.assertEquals(generation + 1, clone.generation());
+        for (String file : files) {
+            Assert.assertEquals(source.fileLength(file), clone.fileLength(file));
+        }
+        Assert.assertEquals(200, count(clone));
+        Assert.assertEquals(200, count(source));
+    }
+
+    @Test
+    public void testColumnCopy() throws Exception {
+        // plain IOs cannot share rows, so the columns get copied (many batches of them, by several tasks).
+        ColDirectory source = ColDirectory.open("source", new MemoryIO(256), new MemoryIO(256)).withCopyThreads(3).withColumnSize("fdt", 512);
+        ColDirectory dest = ColDirectory.open("dest", new MemoryIO(128), new MemoryIO(256));
+        byte[] data = TestUtil.randomString(50000).getBytes();
+        IndexOutput out = source.createOutput("_0.fdt", IOContext.DEFAULT);
+        out.writeBytes(data, data.length);
+        out.close();
+        
+        source.copy(dest, "_0.fdt", "_1.fdt", IOContext.DEFAULT);
+        Assert.assertEquals(data.length, dest.fileLength("_1.fdt"));
+        Assert.assertEquals(512, dest.colSize("_1.fdt"));
+        IndexInput in = dest.openInput("_1.fdt", IOContext.DEFAULT);
+        byte[] copied = new byte[data.length];
+        in.readBytes(copied, 0, copied.length);
+        in.close();
+        Assert.assertArrayEquals(data, copied);
+    }
+    
+    private static void addDocuments(Directory dir, int count) throws IOException {
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        for (int i = 0; i < count; i++) {
+            Document doc = new Document();
+            doc.add(new Field("key", Integer.toHexString(i), TextField.TYPE_STORED));
+            doc.add(new Field("all", "yes", TextField.TYPE_NOT_STORED));
+            writer.addDocument(doc);
+        }
+        writer.close();
+    }
+
+    private static int count(Directory dir) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            return new IndexSearcher(reader).search(new TermQuery(new Term("all", "yes")), 1000).totalHits;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package collene;
+
+import com.google.common.hash.Hashing;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestDedupIO {
+
+    @Test
+    public void testValuesAreStoredOnce() throws IOException {
+        final AtomicInteger valuePuts = new AtomicInteger(0);
+        IO backend = new MemoryIO(64) {
+            @Override
+            public void put(String key, long col, byte[] value) throws IOException {
+                if (key.startsWith(DedupIO.VALUE_PREFIX)) {
+                    valuePuts.incrementAndGet();
+                }
+                super.put(key, col, value);
+            }
+        };
+        DedupIO io = new DedupIO(backend);
+        byte[] zeros = new byte[64];
+        for (int col = 0; col < 10; col++) {
+            io.put("a", col, zeros);
+            io.put("b", col, zeros);
+        }
+        Assert.assertEquals(1, valuePuts.get());
+        Assert.assertEquals(19, io.dedupedPuts());
+        Assert.assertEquals(20, io.references(zeros));
+        Assert.assertArrayEquals(zeros, io.get("b", 9L));
+        Assert.assertEquals(10, Utils.asCollection(io.allColumns("a")).size());
+
+        // writing the same thing again changes nothing.
+        io.put("a", 0L, zeros);
+        Assert.assertEquals(1, valuePuts.get());
+        Assert.assertEquals(20, io.references(zeros));
+    }
+
+    @Test
+    public void testValuesGoWithTheirLastReference() throws IOException {
+        IO backend = new MemoryIO(64);
+        DedupIO io = new DedupIO(backend);
+        byte[] one = TestUtil.randomString(64).getBytes();
+        byte[] two = TestUtil.randomString(64).getBytes();
+        io.put("a", 0L, one);
+        io.put("b", 0L, one);
+        io.put("b", 1L, two);
+
+        io.delete("a");
+        Assert.assertArrayEquals(one, io.get("b", 0L));
+        Assert.assertEquals(1, io.references(one));
+
+        // overwriting drops the old value.
+        io.put("b", 0L, two);
+        Assert.assertEquals(0, io.references(one));
+        Assert.assertEquals(2, io.references(two));
+        Assert.assertEquals(1, valueRows(backend, one, two));
+
+        io.delete("b", 0L);
+        io.delete("b", 1L);
+        Assert.assertNull(io.get("b", 1L));
+        Assert.assertEquals(0, valueRows(backend, one, two));
+    }
+
+    @Test
+    public void testFilterOnlySavesWork() throws IOException {
+        // another instance (or a restart) does not know what is stored already, and must not lose track of it.
+        IO backend = new MemoryIO(64);
+        byte[] value = TestUtil.randomString(64).getBytes();
+        new DedupIO(backend).put("a", 0L, value);
+        DedupIO io = new DedupIO(backend).withExpectedValues(100, 0.01d);
+        io.put("b", 0L, value);
+        Assert.assertEquals(2, io.references(value));
+
+        io.delete("a");
+        Assert.assertArrayEquals(value, io.get("b", 0L));
+    }
+
+    private static int valueRows(IO backend, byte[]... values) throws IOException {
+        int rows = 0;
+        for (byte[] value : values) {
+            String key = String.format("%s/%s", DedupIO.VALUE_PREFIX, Hashing.sha256().hashBytes(value));
+            if (backend.hasKey(key)) {
+                rows += 1;
+            }
+        }
+        return rows;
+    }
+
+    @Test
+    public void testConcurrentOverwrites() throws Exception {
+        final DedupIO io = new DedupIO(new MemoryIO(64));
+        final byte[] first = new byte[64];
+        io.put("a", 0L, first);
+        
+        // everybody replaces the same column at once, most of them with the same value.
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < 200; i++) {
+            final byte[] value = new byte[64];
+            value[0] = (byte)(i % 2 + 1);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    io.put("a", 0L, value);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        
+        // whatever won is referenced once, and nothing else is left behind.
+        byte[] last = io.get("a", 0L);
+        Assert.assertEquals(1, io.references(last));
+        Assert.assertEquals(0, io.references(first));
+        byte[] other = last.clone();
+        other[0] = (byte)(3 - other[0]);
+        Assert.assertEquals(0, io.references(other));
+    }
+
+    @Test
+    public void testReadDuringOverwrite() throws Exception {
+        final byte[] first = new byte[64];
+        final byte[] second = new byte[64];
+        second[0] = 1;
+        final AtomicInteger overwrites = new AtomicInteger(0);
+        final DedupIO[] dedup = new DedupIO[1];
+        
+        // overwrite the column once, right after a reader has looked up the hash it holds.
+        dedup[0] = new DedupIO(new MemoryIO(64) {
+            @Override
+            public byte[] get(String key, long col) throws IOException {
+                if (!key.equals("a") && overwrites.get() == 1 && overwrites.compareAndSet(1, 2)) {
+                    dedup[0].put("a", 0L, second);
+                }
+                return super.get(key, col);
+            }
+        });
+        dedup[0].put("a", 0L, first);
+        
+        overwrites.set(1);
+        Assert.assertArrayEquals(second, dedup[0].get("a", 0L));
+        Assert.assertEquals(0, dedup[0].references(first));
+        
+        dedup[0].put("a", 0L, first);
+        overwrites.set(1);
+        List<byte[]> values = new ArrayList<byte[]>();
+        for (byte[] value : dedup[0].allValues("a")) {
+            values.add(value);
+        }
+        Assert.assertEquals(1, values.size());
+        Assert.assertArrayEquals(second, values.get(0));
+        
+        dedup[0].put("a", 0L, first);
+        overwrites.set(1);
+        Column column = dedup[0].allColumns("a").iterator().next();
+        Assert.assertArrayEquals(second, Utils.toBytes(column.value()));
+    }
+}
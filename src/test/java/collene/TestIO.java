@@ -11,9 +11,11 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -197,6 +199,98 @@ public class TestIO {
         System.out.print(".");
     }
     
+    @Test
+    public void testAllColumns() throws IOException {
+        for (int r = 0; r < rows; r++) {
+            Set<Long> seen = new HashSet<Long>();
+            for (Column column : io.allColumns(Integer.toHexString(r))) {
+                Assert.assertTrue(seen.add(column.col()));
+                Assert.assertTrue(column.value().isReadOnly());
+                Assert.assertArrayEquals(data[r][(int)column.col()], Utils.toBytes(column.value()));
+            }
+            Assert.assertEquals(cols, seen.size());
+        }
+        System.out.print(".");
+    }
+    
+    @Test
+    public void testBuffers() throws IOException {
+        if (!(io instanceof BufferIO)) {
+            return;
+        }
+        BufferIO bio = (BufferIO)io;
+        for (int i = 0; i < rows * cols / 2; i++) {
+            int row = rand.nextInt(rows);
+            int col = rand.nextInt(cols);
+            
+            ByteBuffer readData = bio.getBuffer(Integer.toHexString(row), (long)col);
+            Assert.assertTrue(readData.isReadOnly());
+            Assert.assertArrayEquals(data[row][col], Utils.toBytes(readData));
+            
+            byte[] newData = TestUtil.randomString(io.getColSize()).getBytes();
+            bio.putBuffer(Integer.toHexString(row), (long)col, ByteBuffer.wrap(newData));
+            Assert.assertArrayEquals(newData, Utils.toBytes(bio.getBuffer(Integer.toHexString(row), (long)col)));
+            Assert.assertArrayEquals(newData, io.get(Integer.toHexString(row), (long)col));
+            data[row][col] = newData;
+        }
+        Assert.assertNull(bio.getBuffer(Integer.toHexString(rows + 1), 0L));
+        System.out.print(".");
+    }
+    
+    @Test
+    public void testRange() throws IOException {
+        for (int i = 0; i < rows; i++) {
+            int row = rand.nextInt(rows);
+            int from = rand.nextInt(cols);
+            int to = from + rand.nextInt(cols - from + 2); // past the end sometimes.
+            long expected = from;
+            for (Column column : Utils.getRange(io, Integer.toHexString(row), from, to)) {
+                Assert.assertEquals(expected++, column.col());
+                Assert.assertArrayEquals(data[row][(int)column.col()], Utils.toBytes(column.value()));
+            }
+            Assert.assertEquals(Math.min(to, cols), expected);
+        }
+        Assert.assertFalse(Utils.getRange(io, Integer.toHexString(rows + 1), 0, cols).iterator().hasNext());
+        System.out.print(".");
+    }
+    
+    @Test
+    public void testColumns() throws IOException {
+        for (int i = 0; i < rows; i++) {
+            int row = rand.nextInt(rows);
+            Set<Long> wanted = new HashSet<Long>();
+            for (int c = 0; c < 5; c++) {
+                wanted.add((long)rand.nextInt(cols + 2)); // past the end sometimes.
+            }
+            Set<Long> found = new HashSet<Long>();
+            for (Column column : Utils.getColumns(io, Integer.toHexString(row), wanted)) {
+                Assert.assertTrue(found.add(column.col()));
+                Assert.assertArrayEquals(data[row][(int)column.col()], Utils.toBytes(column.value()));
+            }
+            for (long col : wanted) {
+                Assert.assertEquals(col < cols, found.contains(col));
+            }
+        }
+        System.out.print(".");
+    }
+    
+    @Test
+    public void testPutColumns() throws IOException {
+        for (int i = 0; i < rows / 5; i++) {
+            int row = rand.nextInt(rows);
+            List<Column> columns = new ArrayList<Column>();
+            for (int c = 0; c < cols; c += 1 + rand.nextInt(3)) {
+                data[row][c] = TestUtil.randomString(io.getColSize()).getBytes();
+                columns.add(new Column(c, ByteBuffer.wrap(data[row][c])));
+            }
+            Utils.putColumns(io, Integer.toHexString(row), columns);
+            for (int c = 0; c < cols; c++) {
+                Assert.assertArrayEquals(data[row][c], io.get(Integer.toHexString(row), (long)c));
+            }
+        }
+        System.out.print(".");
+    }
+    
     @Test
     public void ok() {
         System.out.println("ok");
@@ -229,6 +323,13 @@ public class TestIO {
                 // the backing IO.
                 new SplitRowIO(256, ",", new CachingIO(new MemoryIO(1024), true)),
                 new CachingIO(new SplitRowIO(256, ",", new MemoryIO(1024))),
+                new DedupIO(new MemoryIO(1024)),
+                new CachingIO(new DedupIO(new MemoryIO(1024))),
+                new BatchingIO(new MemoryIO(1024)),
+                new RangeSplitRowIO(16, ",", new MemoryIO(1024)),
+                new CachingIO(new RangeSplitRowIO(16, ",", new MemoryIO(1024))),
+                new SimulatedRemoteIO(new MemoryIO(1024)).withReadLatency(10, 10).withOutliers(0.01, 1000),
+                new CachingIO(new SimulatedRemoteIO(new MemoryIO(1024)).withReadLatency(10, 10)),
                 
                 // run the same test multiple times with the same cassandra database, keyspace and column family. Only change
                 // the prefix. All data should still reside on the database at the end, but should be properly namespaced to
@@ -237,9 +338,19 @@ public class TestIO {
                 parentIO.clone(NextCassandraPrefix.get()),
                 parentIO.clone(NextCassandraPrefix.get()),
                 
+                // small pages force the driver to page through each row.
+                parentIO.clone(NextCassandraPrefix.get()).withFetchSize(7),
+                
                 // mix things up.
                 new SplitRowIO(256, ",", parentIO.clone(NextCassandraPrefix.get())),
                 new CachingIO(parentIO.clone(NextCassandraPrefix.get())),
+                
+                // flushes split into several batches, or into single inserts.
+                new CachingIO(parentIO.clone(NextCassandraPrefix.get()).withMaxBatchBytes(100).withMaxBatchesInFlight(2)),
+                new CachingIO(parentIO.clone(NextCassandraPrefix.get()).withMaxBatchBytes(0)),
+                new CachingIO(new RangeSplitRowIO(16, ",", parentIO.clone(NextCassandraPrefix.get()))),
+                new BatchingIO(parentIO.clone(NextCassandraPrefix.get())),
+                new RangeSplitRowIO(16, ",", parentIO.clone(NextCassandraPrefix.get())),
         };
         
         for (IO io : ios) {
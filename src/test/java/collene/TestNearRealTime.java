@@ -0,0 +1,184 @@
+package collene;
+
+import collene.cache.EvictionStrategies;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class TestNearRealTime {
+    private static final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_9);
+    
+    @Test
+    public void testReopenWithSharedCache() throws Exception {
+        CountingIO indexIO = new CountingIO(1024);
+        ColDirectory dir = ColDirectory.open("nrt", indexIO, new MemoryIO(256)).withSharedCache(EvictionStrategies.NEVER);
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        
+        addDocuments(writer, 100);
+        writer.commit();
+        DirectoryReader reader = DirectoryReader.open(dir);
+        Assert.assertEquals(100, count(reader));
+        
+        // nothing changed.
+        long generation = dir.generation();
+        Assert.assertNull(DirectoryReader.openIfChanged(reader));
+        Assert.assertEquals(generation, dir.generation());
+        
+        addDocuments(writer, 50);
+        writer.commit();
+        Assert.assertTrue(dir.generation() > generation);
+        
+        DirectoryReader newReader = DirectoryReader.openIfChanged(reader);
+        Assert.assertNotNull(newReader);
+        Assert.assertEquals(150, count(newReader));
+        reader.close();
+        
+        // the old segment's columns are all cached by now. searching again should not touch the backend. files lucene
+        // only reads once at open time are not cached unless they are warmed.
+        count(newReader);
+        dir.warm(new Warmer().withPriority("si", 1).withPriority("cfe", 1));
+        int before = indexIO.gets();
+        count(DirectoryReader.open(dir));
+        Assert.assertEquals(before, indexIO.gets());
+        
+        newReader.close();
+        writer.close();
+    }
+    
+    @Test
+    public void testWarmUp() throws Exception {
+        CountingIO indexIO = new CountingIO(1024);
+        ColDirectory dir = ColDirectory.open("warm", indexIO, new MemoryIO(256)).withSharedCache(EvictionStrategies.NEVER);
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 100);
+        writer.commit();
+        writer.close();
+        
+        // the budget is respected.
+        int start = indexIO.gets();
+        long warmed = dir.warm(new Warmer().withByteBudget(2048));
+        Assert.assertTrue(warmed > 0);
+        Assert.assertTrue(warmed <= 2048);
+        
+        // one read per column warmed. nothing here was written with columns smaller than the IO's.
+        int colSize = indexIO.getColSize();
+        Assert.assertTrue(indexIO.gets() - start <= (warmed + colSize - 1) / colSize);
+        
+        // once everything is warm, opening and searching should not touch the backend.
+        Warmer everything = new Warmer().withPriority("cfe", 1).withPriority("si", 1);
+        Assert.assertTrue(dir.warm(everything) > 0);
+        int before = indexIO.gets();
+        dir.warm(everything);
+        DirectoryReader reader = DirectoryReader.open(dir);
+        Assert.assertEquals(100, count(reader));
+        Assert.assertEquals(before, indexIO.gets());
+        reader.close();
+    }
+    
+    @Test(expected = IllegalStateException.class)
+    public void testWarmUpNeedsSharedCache() throws Exception {
+        ColDirectory.open("cold", new MemoryIO(1024), new MemoryIO(256)).warm(new Warmer());
+    }
+    
+    @Test
+    public void testReadPolicies() throws Exception {
+        CountingIO indexIO = new CountingIO(1024);
+        ColDirectory dir = ColDirectory.open("policies", indexIO, new MemoryIO(256))
+                .withSharedCache(EvictionStrategies.NEVER)
+                .withReadAhead(4);
+        IndexOutput out = dir.createOutput("_0.fdt", IOContext.DEFAULT);
+        out.writeBytes(new byte[10 * 1024], 10 * 1024);
+        out.close();
+        
+        // reading once caches nothing.
+        readAll(dir, IOContext.READONCE);
+        int before = indexIO.gets();
+        readAll(dir, IOContext.READONCE);
+        Assert.assertEquals(10, indexIO.gets() - before);
+        
+        // merges read ahead, but still do not use the cache.
+        before = indexIO.gets();
+        readAll(dir, new IOContext(new MergeInfo(1, 10 * 1024, false, 1)));
+        Assert.assertEquals(12, indexIO.gets() - before); // three windows of four.
+        
+        // searches do.
+        readAll(dir, IOContext.READ);
+        before = indexIO.gets();
+        readAll(dir, IOContext.READ);
+        Assert.assertEquals(before, indexIO.gets());
+        
+        // unless told otherwise.
+        dir.withReadPolicy("fdt", ReadPolicy.UNCACHED);
+        dir.deleteFile("_0.fdt");
+        out = dir.createOutput("_0.fdt", IOContext.DEFAULT);
+        out.writeBytes(new byte[10 * 1024], 10 * 1024);
+        out.close();
+        readAll(dir, IOContext.READ);
+        before = indexIO.gets();
+        readAll(dir, IOContext.READ);
+        Assert.assertEquals(10, indexIO.gets() - before);
+    }
+    
+    @Test
+    public void testTwoInstancesShareGenerations() throws Exception {
+        IO indexIO = new MemoryIO(256);
+        IO metaIO = new MemoryIO(256);
+        ColDirectory a = ColDirectory.open("shared", indexIO, metaIO);
+        ColDirectory b = ColDirectory.open("shared", indexIO, metaIO);
+        a.listAll();
+        b.listAll();
+        
+        // each adds a file without having seen the other's.
+        writeFile(b, "_0.fdt");
+        writeFile(a, "_1.fdt");
+        Assert.assertEquals(a.meta().generation(), b.meta().generation());
+        for (ColDirectory dir : new ColDirectory[] {a, b}) {
+            Assert.assertEquals(2, dir.listAll().length);
+            Assert.assertTrue(dir.fileExists("_0.fdt"));
+            Assert.assertTrue(dir.fileExists("_1.fdt"));
+        }
+    }
+    
+    private static void writeFile(ColDirectory dir, String name) throws IOException {
+        IndexOutput out = dir.createOutput(name, IOContext.DEFAULT);
+        out.writeBytes(new byte[1000], 1000);
+        out.close();
+    }
+    
+    private static void readAll(ColDirectory dir, IOContext context) throws IOException {
+        IndexInput in = dir.openInput("_0.fdt", context);
+        byte[] buf = new byte[(int)in.length()];
+        in.readBytes(buf, 0, buf.length);
+        in.close();
+    }
+    
+    private static void addDocuments(IndexWriter writer, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Document doc = new Document();
+            doc.add(new Field("key", Integer.toHexString(i), TextField.TYPE_STORED));
+            doc.add(new Field("all", "yes", TextField.TYPE_NOT_STORED));
+            writer.addDocument(doc);
+        }
+    }
+    
+    private static int count(DirectoryReader reader) throws IOException {
+        return new IndexSearcher(reader).search(new TermQuery(new Term("all", "yes")), 1000).totalHits;
+    }
+}
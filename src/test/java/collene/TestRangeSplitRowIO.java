@@ -0,0 +1,66 @@
+package collene;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class TestRangeSplitRowIO {
+    
+    @Test
+    public void testKeepsRunsTogether() throws IOException {
+        List<String> ranges = new ArrayList<String>();
+        IO io = new RangeSplitRowIO(20, "/", new RangeMemoryIO(256, ranges));
+        for (int i = 0; i < 50; i++) {
+            io.put("row", i, TestUtil.randomString(io.getColSize()).getBytes());
+        }
+        Assert.assertEquals(50, Utils.asCollection(io.allValues("row")).size());
+        
+        // 10-29 spans two buckets.
+        Assert.assertEquals(20, Utils.asCollection(Utils.getRange(io, "row", 10, 30)).size());
+        Assert.assertEquals(Arrays.asList("row/0", "row/1"), ranges);
+        
+        io.delete("row");
+        Assert.assertFalse(io.hasKey("row"));
+        Assert.assertTrue(Utils.asCollection(io.allValues("row")).isEmpty());
+    }
+    
+    @Test
+    public void testPutAfterDelete() throws IOException {
+        IO io = new RangeSplitRowIO(20, "/", new MemoryIO(256));
+        io.put("row", 5L, new byte[] {1});
+        io.delete("row");
+        
+        // the bucket has to be recorded again.
+        io.put("row", 6L, new byte[] {2});
+        Assert.assertTrue(io.hasKey("row"));
+        Assert.assertEquals(1, Utils.asCollection(io.allValues("row")).size());
+    }
+    
+    // remembers which rows got range reads.
+    private static class RangeMemoryIO extends MemoryIO implements RangeIO {
+        private final List<String> ranges;
+        
+        public RangeMemoryIO(int colSize, List<String> ranges) {
+            super(colSize);
+            this.ranges = ranges;
+        }
+
+        @Override
+        public Iterable<Column> getRange(String key, long fromCol, long toCol) throws IOException {
+            ranges.add(key);
+            List<Column> columns = new ArrayList<Column>();
+            for (long col = fromCol; col < toCol; col++) {
+                byte[] value = get(key, col);
+                if (value != null) {
+                    columns.add(new Column(col, ByteBuffer.wrap(value)));
+                }
+            }
+            return columns;
+        }
+    }
+}
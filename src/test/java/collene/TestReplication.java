@@ -0,0 +1,123 @@
+package collene;
+
+import collene.cache.CachingIO;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestReplication {
+    private static final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_9);
+
+    @Test
+    public void testOnlyChangesAreCopied() throws Exception {
+        ColDirectory source = ColDirectory.open("source", new MemoryIO(256), new MemoryIO(256));
+        ColDirectory replica = ColDirectory.open("replica", new MemoryIO(256), new MemoryIO(256));
+        Replicator replicator = new Replicator(source, replica).withThreads(3).withDeleteObsolete(true);
+
+        IndexWriter writer = new IndexWriter(source, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 200);
+        writer.commit();
+        long first = replicator.replicate();
+        Assert.assertTrue(first > 0);
+        Assert.assertEquals(200, count(replica));
+
+        // nothing new.
+        Assert.assertEquals(0, replicator.replicate());
+
+        // only the new segment (and the commit point) should move.
+        addDocuments(writer, 10);
+        writer.commit();
+        long second = replicator.replicate();
+        Assert.assertTrue(second > 0);
+        Assert.assertTrue(second < first);
+        Assert.assertEquals(210, count(replica));
+        writer.close();
+    }
+
+    @Test
+    public void testResume() throws Exception {
+        final AtomicInteger putsUntilFailure = new AtomicInteger(20);
+        IO flaky = new MemoryIO(256) {
+            @Override
+            public void put(String key, long col, byte[] value) throws IOException {
+                if (putsUntilFailure.decrementAndGet() == 0) {
+                    throw new IOException("the network went away");
+                }
+                super.put(key, col, value);
+            }
+        };
+        ColDirectory source = ColDirectory.open("source", new MemoryIO(256), new MemoryIO(256));
+        ColDirectory replica = ColDirectory.open("replica", flaky, new MemoryIO(256));
+        Replicator replicator = new Replicator(source, replica).withThreads(1);
+
+        IndexWriter writer = new IndexWriter(source, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 500);
+        writer.close();
+        long total = 0;
+        for (String file : source.listAll()) {
+            total += source.fileLength(file);
+        }
+
+        try {
+            replicator.replicate();
+            Assert.fail("should have been interrupted");
+        } catch (IOException expected) {
+            // good.
+        }
+
+        // picks up where it left off.
+        long resumed = replicator.replicate();
+        Assert.assertTrue(resumed > 0);
+        Assert.assertTrue(resumed < total);
+        Assert.assertEquals(500, count(replica));
+    }
+
+    @Test
+    public void testBufferedReplicaIsSynced() throws Exception {
+        ColDirectory source = ColDirectory.open("source", new MemoryIO(256), new MemoryIO(256));
+        IO backing = new MemoryIO(256);
+        IO metaIO = new MemoryIO(256);
+        ColDirectory replica = ColDirectory.open("replica", new CachingIO(backing, false), metaIO);
+        
+        IndexWriter writer = new IndexWriter(source, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 200);
+        writer.close();
+        new Replicator(source, replica).replicate();
+        
+        // a reader that does not share the replica's cache sees the whole commit.
+        Assert.assertEquals(200, count(ColDirectory.open("replica", backing, metaIO)));
+    }
+    
+    private static void addDocuments(IndexWriter writer, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Document doc = new Document();
+            doc.add(new Field("key", Integer.toHexString(i), TextField.TYPE_STORED));
+            doc.add(new Field("all", "yes", TextField.TYPE_NOT_STORED));
+            writer.addDocument(doc);
+        }
+    }
+
+    private static int count(Directory dir) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            return new IndexSearcher(reader).search(new TermQuery(new Term("all", "yes")), 1000).totalHits;
+        } finally {
+            reader.close();
+        }
+    }
+}
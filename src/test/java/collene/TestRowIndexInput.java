@@ -0,0 +1,115 @@
+package collene;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+public class TestRowIndexInput {
+    private static final Random rand = new Random(System.nanoTime());
+    private static final int longs = 1000;
+
+    @Test
+    public void testRandomAccessPowerOfTwoColumns() throws IOException {
+        testRandomAccess(new MemoryIO(64));
+    }
+
+    @Test
+    public void testRandomAccessOddColumns() throws IOException {
+        // values will straddle column boundaries.
+        testRandomAccess(new MemoryIO(37));
+    }
+
+    @Test
+    public void testPerFileColumnSize() throws IOException {
+        IO io = new MemoryIO(64);
+        IO metaIO = new MemoryIO(256);
+        RowMeta meta = new RowMeta(metaIO);
+        testRandomAccess(io, meta, 1000);
+        Assert.assertEquals(1000, meta.getColSize("file"));
+        
+        // the last column only holds what was written.
+        Assert.assertEquals(1000, io.get("file", 7L).length);
+        Assert.assertEquals(1, io.get("file", 8L).length);
+        Assert.assertNull(io.get("file", 9L));
+        
+        // and that survives a trip through the store.
+        Assert.assertEquals(1000, new RowMeta(metaIO).getColSize("file"));
+    }
+    
+    @Test
+    public void testInlineFile() throws IOException {
+        IO io = new MemoryIO(64);
+        IO metaIO = new MemoryIO(256);
+        IndexOutput out = new RowIndexOutput("small", new RowWriter("small", io, new RowMeta(metaIO), 0, 32));
+        out.writeLong(42L);
+        out.writeInt(7);
+        out.close();
+        
+        // nothing went to the data row.
+        Assert.assertFalse(io.hasKey("small"));
+        
+        RowMeta meta = new RowMeta(metaIO);
+        Assert.assertEquals(12, meta.getInline("small").length);
+        IndexInput in = new RowIndexInput("small", new RowReader("small", io, meta));
+        Assert.assertEquals(12, in.length());
+        Assert.assertEquals(42L, in.readLong());
+        Assert.assertEquals(7, in.readInt());
+    }
+    
+    @Test
+    public void testInlineThresholdExceeded() throws IOException {
+        IO io = new MemoryIO(64);
+        RowMeta meta = new RowMeta(new MemoryIO(256));
+        IndexOutput out = new RowIndexOutput("big", new RowWriter("big", io, meta, 0, 32));
+        for (int i = 0; i < 10; i++) {
+            out.writeLong(i);
+        }
+        out.close();
+        
+        Assert.assertNull(meta.getInline("big"));
+        IndexInput in = new RowIndexInput("big", new RowReader("big", io, meta));
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, in.readLong());
+        }
+    }
+    
+    private void testRandomAccess(IO io) throws IOException {
+        testRandomAccess(io, new RowMeta(new MemoryIO(256)), 0);
+    }
+    
+    private void testRandomAccess(IO io, RowMeta meta, int colSize) throws IOException {
+        long[] values = new long[longs];
+        IndexOutput out = new RowIndexOutput("file", new RowWriter("file", io, meta, colSize));
+
+        // a header byte makes sure values are not aligned.
+        out.writeByte((byte)42);
+        for (int i = 0; i < longs; i++) {
+            values[i] = rand.nextLong();
+            out.writeLong(values[i]);
+        }
+        out.close();
+
+        IndexInput in = new RowIndexInput("file", new RowReader("file", io, meta));
+        RandomAccessInput slice = in.randomAccessSlice(1, longs * 8);
+        for (int n = 0; n < longs * 4; n++) {
+            int i = rand.nextInt(longs);
+            long pos = i * 8L;
+            Assert.assertEquals(values[i], slice.readLong(pos));
+            Assert.assertEquals((int)(values[i] >>> 32), slice.readInt(pos));
+            Assert.assertEquals((int)values[i], slice.readInt(pos + 4));
+            Assert.assertEquals((short)(values[i] >>> 48), slice.readShort(pos));
+            Assert.assertEquals((byte)(values[i] >>> 56), slice.readByte(pos));
+        }
+
+        // should agree with sequential reads.
+        in.seek(1);
+        for (int i = 0; i < longs; i++) {
+            Assert.assertEquals(values[i], in.readLong());
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package collene;
 
+import com.google.common.collect.Sets;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -30,6 +31,151 @@ public class TestRowMeta {
         testMeta(new RowMeta(new SplitRowIO(20, "/", new MemoryIO(256))));
     }
     
+    @Test
+    public void testRangeSplitRowMeta() throws IOException {
+        // the key list spreads its columns over all the longs.
+        testMeta(new RowMeta(new RangeSplitRowIO(1024, "/", new MemoryIO(256))));
+    }
+    
+    @Test
+    public void testColSize() throws IOException {
+        IO io = new MemoryIO(256);
+        RowMeta writer = new RowMeta(io);
+        writer.setColSize("aaa", 4096);
+        writer.setLength("aaa", 10, true);
+        writer.setLength("bbb", 10, false);
+        writer.flush(true);
+        
+        RowMeta reader = new RowMeta(io);
+        Assert.assertEquals(4096, reader.getColSize("aaa"));
+        Assert.assertEquals(10, reader.getLength("aaa"));
+        
+        // plain lengths use the column size of the IO.
+        Assert.assertEquals(0, reader.getColSize("bbb"));
+        Assert.assertEquals(10, reader.getLength("bbb"));
+        Assert.assertEquals(0, reader.getColSize("ccc"));
+    }
+    
+    @Test
+    public void testListingCarriesLengths() throws IOException {
+        CountingIO io = new CountingIO(256);
+        RowMeta writer = new RowMeta(io);
+        for (int i = 0; i < 10; i++) {
+            writer.setLength("file" + i, i * 100, false);
+        }
+        writer.flush(true);
+        
+        RowMeta reader = new RowMeta(io);
+        Assert.assertEquals(10, reader.allKeys().length);
+        int listingGets = io.gets();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i * 100, reader.getLength("file" + i));
+        }
+        Assert.assertEquals(listingGets, io.gets());
+    }
+    
+    @Test
+    public void testInline() throws IOException {
+        IO io = new MemoryIO(256);
+        RowMeta writer = new RowMeta(io);
+        writer.setInline("aaa", new byte[]{1, 2, 3});
+        writer.setLength("aaa", 3, true);
+        writer.setColSize("bbb", 4096);
+        writer.setInline("bbb", new byte[]{4});
+        writer.setLength("bbb", 1, true);
+        
+        RowMeta reader = new RowMeta(io);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, reader.getInline("aaa"));
+        Assert.assertEquals(3, reader.getLength("aaa"));
+        Assert.assertEquals(0, reader.getColSize("aaa"));
+        Assert.assertArrayEquals(new byte[]{4}, reader.getInline("bbb"));
+        Assert.assertEquals(4096, reader.getColSize("bbb"));
+        Assert.assertNull(reader.getInline("ccc"));
+    }
+    
+    @Test
+    public void testListingFollowsGeneration() throws IOException {
+        CountingIO io = new CountingIO(256);
+        RowMeta writer = new RowMeta(io);
+        RowMeta reader = new RowMeta(io);
+        
+        writer.setLength("aaa", 10, true);
+        long generation = reader.generation();
+        Assert.assertEquals(1, reader.allKeys().length);
+        Assert.assertEquals(1, io.scans());
+        
+        // nothing changed, so no scan.
+        Assert.assertEquals(1, reader.allKeys().length);
+        Assert.assertEquals(1, io.scans());
+        
+        writer.setLength("bbb", 10, false);
+        writer.flush(false);
+        Assert.assertTrue(reader.generation() > generation);
+        Assert.assertEquals(2, reader.allKeys().length);
+        Assert.assertEquals(2, io.scans());
+        
+        // the writer keeps its own listing up to date without scanning.
+        Assert.assertEquals(2, writer.allKeys().length);
+        writer.delete("aaa");
+        Assert.assertEquals(1, writer.allKeys().length);
+        Assert.assertEquals(3, io.scans());
+        
+        Assert.assertEquals(1, reader.allKeys().length);
+        Assert.assertEquals(4, io.scans());
+    }
+    
+    @Test
+    public void testListRollsOver() throws IOException {
+        CountingIO io = new CountingIO(256);
+        RowMeta writer = new RowMeta(io).withMaxListTombstones(5);
+        RowMeta reader = new RowMeta(io);
+        for (int i = 0; i < 20; i++) {
+            writer.setLength(Integer.toString(i), 10, true);
+        }
+        Assert.assertEquals(20, reader.allKeys().length);
+        for (int i = 0; i < 12; i++) {
+            writer.delete(Integer.toString(i));
+        }
+        
+        // two rollovers, each one dropping a whole row of tombstones.
+        Assert.assertEquals(2, writer.listTombstones());
+        Assert.assertEquals(8, writer.allKeys().length);
+        Assert.assertEquals(8, reader.allKeys().length);
+        Assert.assertTrue(io.deletedRows().contains(String.format("%s/%s", RowMeta.ROW_PREFIX, RowMeta.KEY_LIST_KEY)));
+        Assert.assertTrue(io.deletedRows().contains(String.format("%s/%s/1", RowMeta.ROW_PREFIX, RowMeta.KEY_LIST_KEY)));
+        Assert.assertFalse(io.allValues(String.format("%s/%s", RowMeta.ROW_PREFIX, RowMeta.KEY_LIST_KEY)).iterator().hasNext());
+        
+        // lengths came along, and the count survives a restart.
+        Assert.assertEquals(10, reader.getLength("19"));
+        Assert.assertEquals(2, new RowMeta(io).listTombstones());
+        Assert.assertEquals(8, new RowMeta(io).rollover());
+        Assert.assertEquals(8, reader.allKeys().length);
+    }
+    
+    @Test
+    public void testRolloverUnderAnotherWriter() throws IOException {
+        CountingIO io = new CountingIO(256);
+        RowMeta first = new RowMeta(io);
+        RowMeta second = new RowMeta(io).withMaxListTombstones(3);
+        first.setLength("a", 10, true);
+        for (int i = 0; i < 3; i++) {
+            second.setLength(Integer.toString(i), 10, true);
+        }
+        first.setLength("b", 10, true);
+        for (int i = 0; i < 3; i++) {
+            second.delete(Integer.toString(i));
+        }
+        Assert.assertEquals(0, second.listTombstones());
+        
+        // the first writer last saw epoch 0, which is gone now.
+        first.setLength("c", 10, true);
+        first.delete("a");
+        Assert.assertEquals(1, second.listTombstones());
+        for (RowMeta meta : new RowMeta[] {first, second, new RowMeta(io)}) {
+            Assert.assertEquals(Sets.newHashSet("b", "c"), Sets.newHashSet(meta.allKeys()));
+        }
+    }
+    
     private void testMeta(RowMeta rowMeta) throws IOException {
         for (int i = 0; i < rows; i++) {
             rowMeta.setLength("abcdefghijklmnopqrstuvwxyz " + i, 4096, true);
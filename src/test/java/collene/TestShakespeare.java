@@ -16,6 +16,7 @@
 
 package collene;
 
+import collene.cache.EvictionStrategies;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.*;
@@ -82,6 +83,14 @@ public class TestShakespeare {
                 new MemoryIO(4096)) };
         list.add(memColDirectory);
         
+        // somewhere between memory and a real cluster.
+        Object[] simulatedColDirectory = new Object[] { ColDirectory.open(
+                "shakespeare.sim",
+                new SimulatedRemoteIO(new MemoryIO(4096)).withReadLatency(50, 50).withWriteLatency(100, 50).withConcurrency(16),
+                new SimulatedRemoteIO(new MemoryIO(4096)).withReadLatency(50, 50).withWriteLatency(100, 50))
+                .withSharedCache(EvictionStrategies.NEVER) };
+        list.add(simulatedColDirectory);
+        
         CassandraIO baseCassandraIO = new CassandraIO(NextCassandraPrefix.get(), 8192, "collene", "cindex").session(cassandra.session);
         Object[] cassColDirectory = new Object[] { ColDirectory.open(
                 "shakespeare.cass",
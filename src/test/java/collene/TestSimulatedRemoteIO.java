@@ -0,0 +1,87 @@
+package collene;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestSimulatedRemoteIO {
+    
+    @Test
+    public void testRoundTrips() throws Exception {
+        SimulatedRemoteIO io = new SimulatedRemoteIO(new MemoryIO(64)).withReadLatency(2000, 0);
+        for (long col = 0; col < 10; col++) {
+            io.put("a", col, new byte[]{(byte)col});
+        }
+        
+        long started = System.nanoTime();
+        for (long col = 0; col < 10; col++) {
+            Assert.assertArrayEquals(new byte[]{(byte)col}, io.get("a", col));
+        }
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertEquals(20, io.trips());
+        
+        // a range is one trip.
+        Assert.assertEquals(10, Utils.asCollection(io.getRange("a", 0, 20)).size());
+        Assert.assertEquals(21, io.trips());
+    }
+    
+    @Test
+    public void testBandwidth() throws Exception {
+        SimulatedRemoteIO io = new SimulatedRemoteIO(new MemoryIO(10000)).withBandwidth(1000000);
+        io.put("a", 0L, new byte[10000]);
+        long started = System.nanoTime();
+        io.get("a", 0L);
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+    
+    @Test
+    public void testConcurrencyLimit() throws Exception {
+        final SimulatedRemoteIO io = new SimulatedRemoteIO(new MemoryIO(64)).withReadLatency(5000, 0).withConcurrency(2);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        long started = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return io.get("a", 0L);
+                }
+            }));
+        }
+        for (Future<byte[]> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        
+        // four waves of two.
+        Assert.assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+    
+    @Test
+    public void testSameSeedSameDelays() throws Exception {
+        Assert.assertEquals(run(42), run(42));
+        Assert.assertNotEquals(run(42), run(43));
+    }
+    
+    private static long run(long seed) throws IOException {
+        SimulatedRemoteIO io = new SimulatedRemoteIO(new MemoryIO(64))
+                .withReadLatency(1, 20)
+                .withWriteLatency(1, 10)
+                .withOutliers(0.1, 100)
+                .withSeed(seed);
+        for (long col = 0; col < 50; col++) {
+            io.put("a", col, new byte[]{1});
+            io.get("a", col);
+        }
+        Assert.assertTrue(io.outliers() > 0);
+        return io.delayNanos();
+    }
+}
@@ -0,0 +1,182 @@
+package collene;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestSnapshots {
+    private static final Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_9);
+
+    private IO dataIO;
+    private IO translations;
+    private ColDirectory dir;
+
+    @Before
+    public void setup() {
+        dataIO = new MemoryIO(256);
+        translations = new MemoryIO(32);
+        dir = ColDirectory.open("snapshots", new TranslateIO(new SimpleTranslate(translations), dataIO), new MemoryIO(256));
+    }
+
+    @Test
+    public void testSnapshotOutlivesMerges() throws Exception {
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 200);
+        writer.commit();
+        Snapshot snapshot = dir.snapshot("before");
+
+        // merging deletes every file the snapshot knows about.
+        addDocuments(writer, 100);
+        writer.forceMerge(1);
+        writer.close();
+        Assert.assertTrue(Collections.disjoint(snapshot.files(), Arrays.asList(dir.listAll())));
+
+        Assert.assertEquals(300, count(dir));
+        ColDirectory before = dir.openSnapshot("before");
+        Assert.assertEquals(200, count(before));
+
+        // releasing it reclaims the rows nothing else was using.
+        dir.releaseSnapshot("before");
+        for (String file : snapshot.files()) {
+            if (snapshot.row(file) != null) {
+                Assert.assertFalse(dataIO.hasKey(snapshot.row(file)));
+            }
+        }
+        Assert.assertEquals(300, count(dir));
+    }
+
+    @Test
+    public void testSnapshotsAreReadOnly() throws Exception {
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 10);
+        writer.close();
+        dir.snapshot("s");
+        ColDirectory snapshot = dir.openSnapshot("s");
+        try {
+            snapshot.createOutput("_9.fdt", IOContext.DEFAULT);
+            Assert.fail("should not be able to write to a snapshot");
+        } catch (UnsupportedOperationException expected) {
+            // good.
+        }
+        try {
+            snapshot.deleteFile(snapshot.listAll()[0]);
+            Assert.fail("should not be able to delete from a snapshot");
+        } catch (UnsupportedOperationException expected) {
+            // good.
+        }
+        try {
+            snapshot.releaseSnapshot("s");
+            Assert.fail("should not be able to release snapshots from a snapshot");
+        } catch (UnsupportedOperationException expected) {
+            // good.
+        }
+        Assert.assertEquals(10, count(snapshot));
+    }
+
+    @Test
+    public void testInlineFilesHaveNoRows() throws Exception {
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 10);
+        writer.close();
+        Snapshot snapshot = dir.snapshot("s");
+        
+        // the snapshot carries their data, so they are not given a row just to hold on to.
+        int inline = 0;
+        for (String file : snapshot.files()) {
+            if (snapshot.inline(file) != null) {
+                Assert.assertNull(snapshot.row(file));
+                Assert.assertFalse(translations.hasKey(file));
+                inline += 1;
+            }
+        }
+        Assert.assertTrue(inline > 0);
+        Assert.assertEquals(snapshot.files(), dir.meta().getSnapshot("s").files());
+        Assert.assertEquals(10, count(dir.openSnapshot("s")));
+        dir.releaseSnapshot("s");
+    }
+
+    @Test
+    public void testMissingFiles() throws Exception {
+        IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, analyzer));
+        addDocuments(writer, 10);
+        writer.close();
+        dir.snapshot("s");
+        ColDirectory snapshot = dir.openSnapshot("s");
+        Assert.assertFalse(dir.fileExists("_9.fdt"));
+        Assert.assertFalse(snapshot.fileExists("_9.fdt"));
+        Assert.assertTrue(snapshot.fileExists(snapshot.listAll()[0]));
+        try {
+            snapshot.openInput("_9.fdt", IOContext.DEFAULT);
+            Assert.fail("should not be able to open a file that is not there");
+        } catch (FileNotFoundException expected) {
+            // good.
+        }
+    }
+    
+    @Test
+    public void testSnapshotsNeedTranslation() throws Exception {
+        ColDirectory plain = ColDirectory.open("plain", new MemoryIO(256), new MemoryIO(256));
+        try {
+            plain.openSnapshot("s");
+            Assert.fail("should not be able to open a snapshot without a TranslateIO");
+        } catch (FileNotFoundException unexpected) {
+            Assert.fail("should have been told why");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("TranslateIO"));
+        }
+        try {
+            plain.snapshot("s");
+            Assert.fail("should not be able to take a snapshot without a TranslateIO");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("TranslateIO"));
+        }
+        try {
+            plain.releaseSnapshot("s");
+            Assert.fail("should not be able to release a snapshot without a TranslateIO");
+        } catch (IOException expected) {
+            Assert.assertTrue(expected.getMessage().contains("TranslateIO"));
+        }
+    }
+    
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingSnapshot() throws Exception {
+        dir.openSnapshot("nope");
+    }
+
+    private static void addDocuments(IndexWriter writer, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            Document doc = new Document();
+            doc.add(new Field("key", Integer.toHexString(i), TextField.TYPE_STORED));
+            doc.add(new Field("all", "yes", TextField.TYPE_NOT_STORED));
+            writer.addDocument(doc);
+        }
+    }
+
+    private static int count(Directory dir) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            return new IndexSearcher(reader).search(new TermQuery(new Term("all", "yes")), 1000).totalHits;
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -5,6 +5,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class TestTranslate {
     
@@ -65,4 +69,162 @@ public class TestTranslate {
         Assert.assertArrayEquals(aaa0, io.get("bbb", 0L));
         
     }
+    
+    @Test
+    public void testRelinkInvalidatesCache() throws IOException {
+        byte[] aaa0 = TestUtil.randomString(io.getColSize()).getBytes();
+        byte[] bbb0 = TestUtil.randomString(io.getColSize()).getBytes();
+        io.put("aaa", 0L, aaa0);
+        io.put("bbb", 0L, bbb0);
+        
+        // prime the cache.
+        Assert.assertArrayEquals(bbb0, io.get("bbb", 0L));
+        
+        io.link("bbb", translate.translate("aaa"));
+        Assert.assertArrayEquals(aaa0, io.get("bbb", 0L));
+        
+        translate.unset("bbb");
+        Assert.assertNull(mappingIO.get("bbb", 0L));
+        Assert.assertFalse(translate.translate("aaa").equals(translate.translate("bbb")));
+    }
+    
+    @Test
+    public void testBatchTranslation() throws IOException {
+        io.put("aaa", 0L, TestUtil.randomString(io.getColSize()).getBytes());
+        String aaaTrans = translate.translate("aaa");
+        
+        Map<String, String> translations = io.translate(Arrays.asList("aaa", "bbb", "ccc"));
+        Assert.assertEquals(3, translations.size());
+        Assert.assertEquals(aaaTrans, translations.get("aaa"));
+        Assert.assertEquals(translate.translate("bbb"), translations.get("bbb"));
+        Assert.assertEquals(translate.translate("ccc"), translations.get("ccc"));
+        Assert.assertFalse(translations.get("bbb").equals(translations.get("ccc")));
+    }
+    
+    @Test
+    public void testSharedRowSurvivesDelete() throws IOException {
+        byte[] aaa0 = TestUtil.randomString(io.getColSize()).getBytes();
+        io.put("aaa", 0L, aaa0);
+        String translation = translate.translate("aaa");
+        
+        io.link("bbb", translation);
+        Assert.assertEquals(2, io.references(translation));
+        
+        // the row is still linked from bbb.
+        io.delete("aaa");
+        Assert.assertEquals(1, io.references(translation));
+        Assert.assertArrayEquals(aaa0, io.get("bbb", 0L));
+        Assert.assertArrayEquals(aaa0, dataIO.get(translation, 0L));
+        
+        // now it is gone.
+        io.delete("bbb");
+        Assert.assertNull(dataIO.get(translation, 0L));
+        Assert.assertFalse(dataIO.hasKey(translation));
+    }
+    
+    @Test
+    public void testRelinkReleasesPreviousRow() throws IOException {
+        io.put("aaa", 0L, TestUtil.randomString(io.getColSize()).getBytes());
+        io.put("bbb", 0L, TestUtil.randomString(io.getColSize()).getBytes());
+        String aaaTrans = translate.translate("aaa");
+        String bbbTrans = translate.translate("bbb");
+        
+        io.link("bbb", aaaTrans);
+        Assert.assertFalse(dataIO.hasKey(bbbTrans));
+        Assert.assertEquals(2, io.references(aaaTrans));
+        
+        // linking to the same row again should not change anything.
+        io.link("bbb", aaaTrans);
+        Assert.assertEquals(2, io.references(aaaTrans));
+    }
+    
+    @Test
+    public void testDeferredSweep() throws IOException {
+        io.withDeferredReclaim(true);
+        for (String key : new String[] {"aaa", "bbb", "ccc"}) {
+            io.put(key, 0L, TestUtil.randomString(io.getColSize()).getBytes());
+        }
+        String aaaTrans = translate.translate("aaa");
+        String bbbTrans = translate.translate("bbb");
+        io.delete("aaa");
+        io.delete("bbb");
+        
+        // nothing has been reclaimed yet.
+        Assert.assertTrue(dataIO.hasKey(aaaTrans));
+        Assert.assertTrue(dataIO.hasKey(bbbTrans));
+        
+        Assert.assertEquals(2, io.sweep());
+        Assert.assertFalse(dataIO.hasKey(aaaTrans));
+        Assert.assertFalse(dataIO.hasKey(bbbTrans));
+        Assert.assertTrue(dataIO.hasKey(translate.translate("ccc")));
+        Assert.assertEquals(0, io.sweep());
+    }
+    
+    @Test
+    public void testSweepDropsWholeGarbageRows() throws IOException {
+        final List<String> deletedCols = new ArrayList<String>();
+        dataIO = new MemoryIO(256) {
+            @Override
+            public void delete(String key, long col) throws IOException {
+                deletedCols.add(key);
+                super.delete(key, col);
+            }
+        };
+        io = new TranslateIO(translate, dataIO).withDeferredReclaim(true);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5; i++) {
+                String key = String.format("%d-%d", round, i);
+                io.put(key, 0L, TestUtil.randomString(io.getColSize()).getBytes());
+                io.delete(key);
+            }
+            Assert.assertEquals(5, io.sweep());
+        }
+        
+        // no column tombstones, and no garbage rows left behind.
+        Assert.assertTrue(deletedCols.isEmpty());
+        for (String garbageKey : new String[] {TranslateIO.GARBAGE_KEY, TranslateIO.GARBAGE_KEY + "/1", TranslateIO.GARBAGE_KEY + "/2"}) {
+            Assert.assertFalse(dataIO.allValues(garbageKey).iterator().hasNext());
+        }
+        Assert.assertEquals(0, io.sweep());
+    }
+    
+    @Test
+    public void testRetainAfterRelease() throws IOException {
+        io.withDeferredReclaim(true);
+        io.put("aaa", 0L, TestUtil.randomString(io.getColSize()).getBytes());
+        String aaaTrans = translate.translate("aaa");
+        io.delete("aaa");
+        
+        // picked back up before the sweeper got to it.
+        io.link("bbb", aaaTrans);
+        Assert.assertEquals(0, io.sweep());
+        Assert.assertTrue(dataIO.hasKey(aaaTrans));
+        Assert.assertEquals(1, io.references(aaaTrans));
+        
+        // and let go again.
+        io.delete("bbb");
+        Assert.assertEquals(1, io.sweep());
+        Assert.assertFalse(dataIO.hasKey(aaaTrans));
+    }
+    
+    @Test
+    public void testSweeperCountsFailures() throws Exception {
+        dataIO = new MemoryIO(256) {
+            @Override
+            public byte[] get(String key, long col) throws IOException {
+                throw new IOException("the network went away");
+            }
+        };
+        RowSweeper sweeper = new RowSweeper(new TranslateIO(translate, dataIO).withDeferredReclaim(true), 10).start();
+        try {
+            for (int i = 0; i < 500 && sweeper.failures() == 0; i++) {
+                Thread.sleep(10);
+            }
+        } finally {
+            sweeper.close();
+        }
+        Assert.assertTrue(sweeper.failures() > 0);
+        Assert.assertEquals("the network went away", sweeper.lastFailure().getMessage());
+        Assert.assertEquals(0, sweeper.swept());
+    }
 }
@@ -1,16 +1,35 @@
 package collene.cache;
 
+import collene.Column;
+import collene.CountingIO;
 import collene.IO;
 import collene.MemoryIO;
+import collene.MultiPutIO;
 import collene.TestUtil;
+import collene.Utils;
 import collene.time.Clock;
 import com.google.common.collect.Table;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.internal.util.reflection.Whitebox;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestCachingIO {
     
@@ -84,6 +103,355 @@ public class TestCachingIO {
         Assert.assertEquals(0, countCacheItems(io));
     }
     
+    @Test
+    public void testNegativeCache() throws Exception {
+        CountingIO backend = new CountingIO(256);
+        CachingIO io = new CachingIO(backend).withNegativeCache(2);
+        Assert.assertNull(io.get("lock", 0L));
+        Assert.assertNull(io.get("lock", 0L));
+        Assert.assertFalse(io.hasKey("lock"));
+        Assert.assertEquals(1, backend.gets());
+        Assert.assertEquals(2, io.avoidedMisses());
+        
+        // writes are seen right away.
+        io.put("lock", 0L, new byte[]{1});
+        Assert.assertTrue(io.hasKey("lock"));
+        
+        // so are deletes.
+        io.delete("lock", 0L);
+        Assert.assertNull(io.get("lock", 0L));
+        Assert.assertEquals(1, backend.gets());
+        
+        // it is bounded.
+        io.get("a", 0L);
+        io.get("b", 0L);
+        io.get("lock", 0L);
+        Assert.assertEquals(4, backend.gets());
+        
+        // somebody else wrote this.
+        backend.put("b", 0L, new byte[]{1});
+        io.invalidate("b");
+        Assert.assertNotNull(io.get("b", 0L));
+    }
+    
+    @Test
+    public void testRowFilters() throws Exception {
+        CountingIO backend = new CountingIO(256);
+        CachingIO io = new CachingIO(backend).withRowFilters(10, 100);
+        Assert.assertFalse(io.hasKey("new"));
+        for (long col = 0; col < 50; col++) {
+            Assert.assertNull(io.get("new", col));
+        }
+        Assert.assertEquals(1, backend.gets());
+        
+        io.put("new", 7L, new byte[]{7});
+        io.flush(false);
+        io.invalidate("other");
+        Assert.assertArrayEquals(new byte[]{7}, io.get("new", 7L));
+        
+        // a deleted row is empty too.
+        io.put("old", 3L, new byte[]{3});
+        io.flush(false);
+        io.delete("old");
+        int gets = backend.gets();
+        Assert.assertNull(io.get("old", 3L));
+        Assert.assertFalse(io.hasKey("old"));
+        Assert.assertEquals(gets, backend.gets());
+    }
+    
+    @Test
+    public void testConcurrentMissesShareARead() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountingIO backend = new CountingIO(256) {
+            @Override
+            public byte[] get(String key, long col) throws IOException {
+                Uninterruptibles.awaitUninterruptibly(release);
+                return super.get(key, col);
+            }
+        };
+        backend.put("hot", 0L, new byte[]{42});
+        final CachingIO io = new CachingIO(backend);
+        
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return io.get("hot", 0L);
+                }
+            }));
+        }
+        while (io.sharedMisses() < threads - 1) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Future<byte[]> future : futures) {
+            Assert.assertArrayEquals(new byte[]{42}, future.get());
+        }
+        executor.shutdown();
+        Assert.assertEquals(1, backend.gets());
+    }
+    
+    @Test
+    public void testSharedFailures() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch fail = new CountDownLatch(1);
+        final CachingIO io = new CachingIO(new MemoryIO(256) {
+            @Override
+            public byte[] get(String key, long col) throws IOException {
+                reading.countDown();
+                Uninterruptibles.awaitUninterruptibly(fail);
+                throw new IOException("nope");
+            }
+        });
+        
+        // the first reader goes to the backend, the rest wait on it.
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<byte[]>> readers = new ArrayList<Future<byte[]>>();
+        Callable<byte[]> read = new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return io.get("a", 0L);
+            }
+        };
+        readers.add(executor.submit(read));
+        reading.await();
+        for (int i = 0; i < 3; i++) {
+            readers.add(executor.submit(read));
+        }
+        while (io.sharedMisses() < 3) {
+            Thread.sleep(1);
+        }
+        fail.countDown();
+        for (Future<byte[]> reader : readers) {
+            try {
+                reader.get();
+                Assert.fail("should have thrown");
+            } catch (ExecutionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof IOException);
+            }
+        }
+        executor.shutdown();
+        
+        // nothing is left waiting on the failed read.
+        try {
+            io.get("a", 0L);
+            Assert.fail("should have thrown again");
+        } catch (IOException expected) {
+            // good.
+        }
+        Assert.assertEquals(3, io.sharedMisses());
+    }
+    
+    @Test
+    public void testInvalidateDuringRead() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final AtomicInteger reads = new AtomicInteger(0);
+        final MemoryIO backend = new MemoryIO(256) {
+            @Override
+            public byte[] get(String key, long col) throws IOException {
+                byte[] value = super.get(key, col);
+                if (reads.getAndIncrement() == 0) {
+                    reading.countDown();
+                    Uninterruptibles.awaitUninterruptibly(finish);
+                }
+                return value;
+            }
+        };
+        backend.put("segments.gen", 0L, new byte[] {1});
+        final CachingIO io = new CachingIO(backend);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<byte[]> slow = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return io.get("segments.gen", 0L);
+            }
+        });
+        reading.await();
+        
+        // rewritten behind the cache's back while the read was out.
+        backend.put("segments.gen", 0L, new byte[] {2});
+        io.invalidate("segments.gen");
+        finish.countDown();
+        Assert.assertArrayEquals(new byte[] {1}, slow.get());
+        executor.shutdown();
+        
+        // the old bytes did not make it into the cache.
+        Assert.assertArrayEquals(new byte[] {2}, io.get("segments.gen", 0L));
+    }
+    
+    @Test
+    public void testErrorsDoNotStrandReaders() throws Exception {
+        final AtomicInteger reads = new AtomicInteger(0);
+        final CachingIO io = new CachingIO(new MemoryIO(256) {
+            @Override
+            public byte[] get(String key, long col) throws IOException {
+                if (reads.getAndIncrement() == 0) {
+                    throw new AssertionError("not an exception");
+                }
+                return new byte[] {1};
+            }
+        });
+        try {
+            io.get("a", 0L);
+            Assert.fail("should have thrown");
+        } catch (AssertionError expected) {
+            // good.
+        }
+        
+        // the next read does not wait on the one that blew up.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<byte[]> next = executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return io.get("a", 0L);
+            }
+        });
+        Assert.assertArrayEquals(new byte[] {1}, next.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+    
+    @Test
+    public void testFlushWritesRowsTogether() throws Exception {
+        RowPutIO backing = new RowPutIO(256);
+        CachingIO io = new CachingIO(backing);
+        putManyThings(io);
+        io.delete("0", 3L);
+        io.flush(false);
+        
+        // one request per row, and nothing for the column that went away.
+        Assert.assertEquals(rows, backing.requests);
+        Assert.assertEquals(0, backing.singlePuts);
+        Assert.assertNull(backing.get("0", 3L));
+        Assert.assertNotNull(backing.get("0", 4L));
+        Assert.assertArrayEquals(io.get("9", 9L), backing.get("9", 9L));
+    }
+    
+    @Test
+    public void testByteBudget() throws Exception {
+        IO backing = new MemoryIO(256);
+        putManyThings(backing);
+        CachingIO io = new CachingIO(backing, false, EvictionStrategies.ALWAYS).withByteBudget(1000);
+        for (long col = 0; col < cols; col++) {
+            io.get("0", col);
+            Assert.assertTrue(io.cachedBytes() <= 1000);
+        }
+        Assert.assertEquals(cols, io.misses());
+        Assert.assertEquals(0, io.hits());
+        
+        // whatever is still cached is a hit.
+        io.get("0", cols - 1L);
+        Assert.assertEquals(1, io.hits());
+        
+        // unflushed writes stay, budget or not.
+        putFewThings(io);
+        Assert.assertEquals(Math.min(rows, cols) * 256, io.cachedBytes());
+        io.flush(true);
+        Assert.assertEquals(0, io.cachedBytes());
+    }
+    
+    @Test
+    public void testByteBudgetWinsOverStrategy() throws Exception {
+        IO backing = new MemoryIO(256);
+        putManyThings(backing);
+        CachingIO io = new CachingIO(backing, false, EvictionStrategies.NEVER).withByteBudget(1000);
+        for (int r = 0; r < rows; r++) {
+            for (long col = 0; col < cols; col++) {
+                io.get(Integer.toHexString(r), col);
+                Assert.assertTrue(io.cachedBytes() <= 1000);
+            }
+        }
+        Assert.assertTrue(io.cachedBytes() > 0);
+    }
+    
+    @Test
+    public void testClockKeepsHotColumns() throws Exception {
+        IO backing = new MemoryIO(256);
+        putManyThings(backing);
+        CachingIO io = new CachingIO(backing, false, EvictionStrategies.CLOCK()).withByteBudget(1024);
+        
+        // one hot column read between cold ones. the hand keeps passing it over.
+        for (long col = 1; col < cols; col++) {
+            io.get("0", 0L);
+            io.get("1", col);
+            Assert.assertTrue(io.cachedBytes() <= 1024);
+        }
+        Assert.assertEquals(cols - 2, io.hits());
+        Assert.assertEquals(cols, io.misses());
+    }
+    
+    @Test
+    public void testEmptyingTheCacheEmptiesTheStrategy() throws Exception {
+        IO backing = new MemoryIO(256);
+        putManyThings(backing);
+        IncrementalEvictionStrategy clock = (IncrementalEvictionStrategy)EvictionStrategies.CLOCK();
+        CachingIO io = new CachingIO(backing, false, clock);
+        getFewThings(io);
+        Assert.assertNotNull(clock.nextVictim());
+        
+        io.flush(true);
+        Assert.assertNull(clock.nextVictim());
+    }
+    
+    @Test
+    public void testClockSweep() throws Exception {
+        IncrementalEvictionStrategy clock = (IncrementalEvictionStrategy)EvictionStrategies.CLOCK();
+        Assert.assertNull(clock.nextVictim());
+        for (long col = 0; col < 1000; col++) {
+            clock.notePut(Long.toString(col % 7), col);
+            clock.noteGet(Long.toString(col % 7), col);
+        }
+        for (long col = 1; col < 1000; col += 2) {
+            clock.remove(Long.toString(col % 7), col);
+        }
+        
+        // everything got a second chance on the first go around. after that, each one comes up once.
+        Set<Long> victims = new HashSet<Long>();
+        for (Map.Entry<String, Long> victim = clock.nextVictim(); victim != null; victim = clock.nextVictim()) {
+            Assert.assertEquals(Long.toString(victim.getValue() % 7), victim.getKey());
+            Assert.assertTrue(victims.add(victim.getValue()));
+            clock.remove(victim.getKey(), victim.getValue());
+        }
+        Assert.assertEquals(500, victims.size());
+        for (long col = 0; col < 1000; col += 2) {
+            Assert.assertTrue(victims.contains(col));
+        }
+        
+        // full sweeps get the same second chance.
+        clock.notePut("a", 1L);
+        Assert.assertTrue(clock.shouldEvict("a", 1L));
+        clock.noteGet("a", 1L);
+        Assert.assertFalse(clock.shouldEvict("a", 1L));
+        Assert.assertTrue(clock.shouldEvict("a", 1L));
+        Assert.assertFalse(clock.shouldEvict("b", 1L));
+    }
+    
+    private static class RowPutIO extends MemoryIO implements MultiPutIO {
+        private int requests = 0;
+        private int singlePuts = 0;
+        
+        public RowPutIO(int colSize) {
+            super(colSize);
+        }
+
+        @Override
+        public synchronized void put(String key, long col, byte[] value) throws IOException {
+            singlePuts += 1;
+            super.put(key, col, value);
+        }
+
+        @Override
+        public synchronized void putColumns(String key, Collection<Column> columns) throws IOException {
+            requests += 1;
+            for (Column column : columns) {
+                super.put(key, column.col(), Utils.toBytes(column.value()));
+            }
+        }
+    }
+    
     private static void putManyThings(IO io) throws IOException {
         for (int r = 0; r < rows; r++) {
             String key = Integer.toHexString(r);
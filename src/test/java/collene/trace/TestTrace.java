@@ -0,0 +1,174 @@
+package collene.trace;
+
+import collene.ColDirectory;
+import collene.MemoryIO;
+import collene.Utils;
+import collene.cache.EvictionStrategies;
+import collene.cache.EvictionStrategy;
+import collene.time.Clock;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Version;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestTrace {
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceWriter writer = new TraceWriter(bytes);
+        writer.record(TraceRecord.Op.GET, "a", 0, 100, 5);
+        writer.record(TraceRecord.Op.GET, "a", -7, -1, 6);
+        writer.record(TraceRecord.Op.PUT, "b", Long.MAX_VALUE, 8192, 1000000);
+        writer.record(TraceRecord.Op.DELETE, "a", 0, 0, 1000000);
+        writer.close();
+        Assert.assertEquals(4, writer.records());
+        
+        List<TraceRecord> records = readAll(new TraceReader(new ByteArrayInputStream(bytes.toByteArray())));
+        Assert.assertEquals(4, records.size());
+        Assert.assertEquals("5 GET a 0 100", records.get(0).toString());
+        Assert.assertEquals("6 GET a -7 -1", records.get(1).toString());
+        Assert.assertEquals("1000000 PUT b " + Long.MAX_VALUE + " 8192", records.get(2).toString());
+        Assert.assertEquals("1000000 DELETE a 0 0", records.get(3).toString());
+        
+        // keys are only spelled out once, and small numbers take a byte.
+        Assert.assertEquals(43, bytes.size());
+    }
+    
+    @Test
+    public void testTracingIO() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        TraceWriter writer = new TraceWriter(bytes);
+        TracingIO io = new TracingIO(new MemoryIO(64), writer);
+        io.put("a", 0L, new byte[10]);
+        io.put("a", 1L, new byte[20]);
+        io.get("a", 0L);
+        io.get("a", 5L);
+        Assert.assertEquals(2, Utils.asCollection(io.getRange("a", 0, 10)).size());
+        io.delete("a");
+        writer.close();
+        
+        List<String> ops = new ArrayList<String>();
+        for (TraceRecord record : readAll(new TraceReader(new ByteArrayInputStream(bytes.toByteArray())))) {
+            ops.add(String.format("%s %d %d", record.op(), record.col(), record.size()));
+        }
+        Assert.assertEquals("[PUT 0 10, PUT 1 20, GET 0 10, GET 5 -1, GET 0 10, GET 1 20, DELETE 0 0]", ops.toString());
+    }
+    
+    @Test
+    public void testReplay() throws Exception {
+        // a small hot set read over and over, and a big file read through once.
+        File file = folder.newFile("trace");
+        TraceWriter writer = new TraceWriter(new FileOutputStream(file));
+        long micros = 0;
+        for (int round = 0; round < 10; round++) {
+            for (long col = 0; col < 10; col++) {
+                writer.record(TraceRecord.Op.GET, "hot", col, 1000, micros += 100);
+            }
+            for (long col = round * 100; col < (round + 1) * 100; col++) {
+                writer.record(TraceRecord.Op.GET, "cold", col, 1000, micros += 100);
+            }
+        }
+        writer.close();
+        
+        TraceReplay replay = new TraceReplay(file).withLatency(1000, 1000);
+        TraceReplay.Result unlimited = replay.replay(new TraceReplay.Candidate("unlimited"));
+        TraceReplay.Result squeezed = replay.replay(new TraceReplay.Candidate("squeezed").withByteBudget(5000).withPolicy(new TraceReplay.Policy() {
+            @Override
+            public EvictionStrategy create(Clock clock) {
+                return EvictionStrategies.ALWAYS;
+            }
+        }));
+        TraceReplay.Result readAhead = replay.replay(new TraceReplay.Candidate("read ahead").withReadAhead(10));
+        
+        // every column is read from the backend once.
+        Assert.assertEquals(1010, unlimited.backendReads());
+        Assert.assertEquals(1010000, unlimited.bytesRead());
+        Assert.assertEquals(90, unlimited.hits());
+        Assert.assertEquals(1010, unlimited.misses());
+        Assert.assertEquals(1010000, unlimited.peakBytes());
+        Assert.assertEquals(1010 * 1000, unlimited.simulatedMicros());
+        
+        Assert.assertTrue(squeezed.hitRatio() < unlimited.hitRatio());
+        Assert.assertTrue(squeezed.backendReads() > unlimited.backendReads());
+        Assert.assertTrue(squeezed.peakBytes() <= 6000);
+        
+        // same hits, a tenth of the trips.
+        Assert.assertEquals(unlimited.hits(), readAhead.hits());
+        Assert.assertEquals(101, readAhead.backendReads());
+    }
+    
+    @Test
+    public void testTraceADirectory() throws Exception {
+        File file = folder.newFile("trace");
+        TraceWriter writer = new TraceWriter(new FileOutputStream(file));
+        ColDirectory dir = ColDirectory.open("traced", new MemoryIO(256), new MemoryIO(256))
+                .withSharedCache(EvictionStrategies.NEVER)
+                .withInlineThreshold(0)
+                .withTracing(writer);
+        IndexWriter indexWriter = new IndexWriter(dir, new IndexWriterConfig(Version.LUCENE_4_9, new StandardAnalyzer(Version.LUCENE_4_9)));
+        for (int i = 0; i < 100; i++) {
+            Document doc = new Document();
+            doc.add(new Field("key", Integer.toHexString(i), TextField.TYPE_STORED));
+            doc.add(new Field("all", "yes", TextField.TYPE_NOT_STORED));
+            indexWriter.addDocument(doc);
+            if (i % 10 == 0) {
+                indexWriter.commit();
+            }
+        }
+        indexWriter.forceMerge(1);
+        indexWriter.close();
+        // every reader reads the same things, which the shared cache already has after the first one.
+        for (int i = 0; i < 3; i++) {
+            DirectoryReader reader = DirectoryReader.open(dir);
+            Assert.assertEquals(100, new IndexSearcher(reader).search(new TermQuery(new Term("all", "yes")), 100).totalHits);
+            reader.close();
+        }
+        writer.close();
+        
+        int gets = 0;
+        int deletes = 0;
+        for (TraceRecord record : readAll(new TraceReader(new FileInputStream(file)))) {
+            gets += record.op() == TraceRecord.Op.GET ? 1 : 0;
+            deletes += record.op() == TraceRecord.Op.DELETE ? 1 : 0;
+        }
+        Assert.assertTrue(gets > 0);
+        Assert.assertTrue(deletes > 0);
+        
+        TraceReplay.Result result = new TraceReplay(file).replay(new TraceReplay.Candidate("never"));
+        Assert.assertTrue(result.hits() > 0);
+    }
+    
+    private static List<TraceRecord> readAll(TraceReader reader) throws IOException {
+        List<TraceRecord> records = new ArrayList<TraceRecord>();
+        TraceRecord record;
+        while ((record = reader.next()) != null) {
+            records.add(record);
+        }
+        reader.close();
+        return records;
+    }
+}